@@ -6,14 +6,29 @@ import java.util.function.BiConsumer;
 /** This class handles a cache of DNS results. It is based on a map that links nodes (queries)
  * to a set of resource records (results). Cached results are only maintained for the duration
  * of the TTL (time-to-live) returned by the server, and are deleted before being returned to
- * the user.
+ * the user. All operations are synchronized, so the cache may be shared by lookups running on
+ * several threads at once.
+ *
+ * The cache also remembers negative answers from authoritative servers: host names that do not
+ * exist (NXDOMAIN), and queries for which the name exists but has no records of the type
+ * (NODATA). These are kept for the negative TTL given with the answer.
  */
 public class DNSCache {
 
+    private static final int MAX_CNAME_CHAIN = 10;
+
     private static DNSCache instance = new DNSCache();
 
 
     private Map<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults = new TreeMap<>();
+    private Map<String, Long> nameErrors = new HashMap<>(); // host name -> expiration time
+    private Map<DNSNode, Long> noData = new HashMap<>(); // query -> expiration time
+
+    /** The kinds of negative answer an authoritative server may give.
+     */
+    public enum NegativeAnswer {
+        NAME_ERROR, NO_DATA
+    }
 
     /** Singleton retrieval method. Only one instance of the DNS cache can be created. This
      * method returns the single DNS cache instance.
@@ -32,13 +47,40 @@ public class DNSCache {
      * @param node DNS query (host name and record type) to obtain cached results.
      * @return A potentially empty set of resources associated to the query.
      */
-    public Set<ResourceRecord> getCachedResults(DNSNode node) {
+    public synchronized Set<ResourceRecord> getCachedResults(DNSNode node) {
         Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
         if (results == null)
             return Collections.emptySet();
 
         results.keySet().removeIf(record -> !record.isStillValid());
-        return Collections.unmodifiableSet(results.keySet());
+        return Collections.unmodifiableSet(new HashSet<>(results.keySet()));
+    }
+
+    /** Returns the cached answer to a query, following cached CNAME records. The records are
+     * returned in the order they appear in a DNS response: the CNAME chain first, then the
+     * records for the final name. Like getCachedResults, this method does not perform the query
+     * itself.
+     *
+     * @param node DNS query (host name and record type) to obtain the cached answer.
+     * @return The list of records answering the query, empty if the answer is not fully cached.
+     */
+    public synchronized List<ResourceRecord> getCachedAnswer(DNSNode node) {
+        List<ResourceRecord> answers = new ArrayList<>();
+        String hostName = node.getHostName();
+        for (int level = 0; level <= MAX_CNAME_CHAIN; level++) {
+            Set<ResourceRecord> results = getCachedResults(new DNSNode(hostName, node.getType()));
+            if (!results.isEmpty()) {
+                answers.addAll(results);
+                return answers;
+            }
+            if (node.getType() == RecordType.CNAME) break;
+            Set<ResourceRecord> cNames = getCachedResults(new DNSNode(hostName, RecordType.CNAME));
+            if (cNames.isEmpty()) break;
+            ResourceRecord cName = cNames.iterator().next();
+            answers.add(cName);
+            hostName = cName.getTextResult();
+        }
+        return Collections.emptyList();
     }
 
     /** Adds a specific resource record to the DNS cache. If the cache already has an equivalent
@@ -48,7 +90,7 @@ public class DNSCache {
      * @param record Resource record, possibly obtained from a DNS server, containing the result
      *               of a DNS query.
      */
-    public void addResult(ResourceRecord record) {
+    public synchronized void addResult(ResourceRecord record) {
 
         if (!record.isStillValid()) return;
 
@@ -58,18 +100,68 @@ public class DNSCache {
             cachedResults.put(record.getNode(), results);
         }
 
+        nameErrors.remove(record.getHostName()); // the name exists after all
+        noData.remove(record.getNode());
+
         ResourceRecord oldRecord = results.get(record);
         if (oldRecord == null || oldRecord.expiresBefore(record))
             results.put(record, record);
     }
 
+    /** Records that an authoritative server said a host name does not exist, or that it has no
+     * records of a type. A negative answer for a name is dropped as soon as records are cached for
+     * it again.
+     *
+     * @param node   DNS query the negative answer was given for.
+     * @param answer Kind of negative answer.
+     * @param ttl    Time, in seconds, the answer may be cached for.
+     */
+    public synchronized void addNegativeAnswer(DNSNode node, NegativeAnswer answer, long ttl) {
+        if (ttl <= 0) return;
+        long expiration = System.currentTimeMillis() + ttl * 1000;
+        if (answer == NegativeAnswer.NAME_ERROR)
+            nameErrors.put(node.getHostName(), expiration);
+        else
+            noData.put(node, expiration);
+    }
+
+    /** Returns the negative answer cached for a query, following cached CNAME records to the
+     * name the answer applies to. Expired answers are removed as they are found.
+     *
+     * @param node    DNS query (host name and record type).
+     * @param aliases List to which the CNAME records followed are added, in order.
+     * @return The kind of negative answer cached, or null if there is none.
+     */
+    public synchronized NegativeAnswer getCachedNegativeAnswer(DNSNode node, List<ResourceRecord> aliases) {
+        String hostName = node.getHostName();
+        for (int level = 0; level <= MAX_CNAME_CHAIN; level++) {
+            if (isCurrent(nameErrors, hostName)) return NegativeAnswer.NAME_ERROR;
+            if (isCurrent(noData, new DNSNode(hostName, node.getType()))) return NegativeAnswer.NO_DATA;
+            if (node.getType() == RecordType.CNAME) break;
+            Set<ResourceRecord> cNames = getCachedResults(new DNSNode(hostName, RecordType.CNAME));
+            if (cNames.isEmpty()) break;
+            ResourceRecord cName = cNames.iterator().next();
+            aliases.add(cName);
+            hostName = cName.getTextResult();
+        }
+        return null;
+    }
+
+    private static <K> boolean isCurrent(Map<K, Long> negativeAnswers, K key) {
+        Long expiration = negativeAnswers.get(key);
+        if (expiration == null) return false;
+        if (expiration > System.currentTimeMillis()) return true;
+        negativeAnswers.remove(key);
+        return false;
+    }
+
     /** Perform a specific action for each query and its set of cached records. This action can
      * be specified using a lambda expression or method name. Expired records are removed before
      * the action is performed.
      *
      * @param consumer Action to be performed for each query and set of records.
      */
-    public void forEachNode(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
+    public synchronized void forEachNode(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
         for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
             entry.getValue().keySet().removeIf(record -> !record.isStillValid());
             if (!entry.getValue().keySet().isEmpty())
@@ -83,7 +175,7 @@ public class DNSCache {
      *
      * @param consumer Action to be performed for each query and record.
      */
-    public void forEachRecord(BiConsumer<DNSNode, ResourceRecord> consumer) {
+    public synchronized void forEachRecord(BiConsumer<DNSNode, ResourceRecord> consumer) {
         for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
             entry.getValue().keySet().removeIf(record -> !record.isStillValid());
             entry.getValue().keySet().forEach(record -> consumer.accept(entry.getKey(), record));
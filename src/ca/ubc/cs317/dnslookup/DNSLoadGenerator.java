@@ -0,0 +1,203 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/** Load generator that replays a query log through the resolver and reports throughput, latency
+ * percentiles, cache hit ratio and the number of queries sent upstream.
+ *
+ * The query log has one query per line, as a host name optionally followed by a record type
+ * (A if omitted). Blank lines and anything after a '#' are ignored. Queries are replayed either
+ * in recorded order by a fixed number of workers, each starting its next query as soon as the
+ * previous one completes, or at a target rate (open loop), where queries are started on schedule
+ * whether or not earlier ones have completed. In open loop mode latency is measured from the
+ * time a query was scheduled, so time spent waiting for a free worker is included.
+ */
+public class DNSLoadGenerator {
+
+    private static final int DEFAULT_STANDIN_PORT = 5300;
+
+    private static final DNSCache cache = DNSCache.getInstance();
+
+    /**
+     * Main function, called when the load generator is invoked.
+     *
+     * @param args list of options followed by the query log file name.
+     */
+    public static void main(String[] args) {
+        InetAddress rootServer = null;
+        int port = -1;
+        boolean standIn = false;
+        long delayMillis = 0;
+        double qps = 0;
+        int concurrency = -1;
+        String logFile = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-root": rootServer = InetAddress.getByName(args[++i]); break;
+                    case "-port": port = Integer.parseInt(args[++i]); break;
+                    case "-standin": standIn = true; break;
+                    case "-delay": delayMillis = Long.parseLong(args[++i]); break;
+                    case "-qps": qps = Double.parseDouble(args[++i]); break;
+                    case "-concurrency": concurrency = Integer.parseInt(args[++i]); break;
+                    default:
+                        if (logFile != null || args[i].startsWith("-")) throw new IllegalArgumentException(args[i]);
+                        logFile = args[i];
+                }
+            }
+            if (logFile == null || (rootServer == null) == !standIn) throw new IllegalArgumentException();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Invalid call. Usage:");
+            System.err.println("\tjava -cp DNSLookupService.jar ca.ubc.cs317.dnslookup.DNSLoadGenerator");
+            System.err.println("\t\t(-root IP | -standin [-delay ms]) [-port port] [-qps rate] [-concurrency n] queryLog");
+            System.err.println("where -standin runs the lookups against a stand-in DNS hierarchy on the loopback interface,");
+            System.err.println("-qps replays the log at a fixed rate instead of in recorded order, and -concurrency sets the");
+            System.err.println("number of worker threads (1 in recorded order, 64 at a fixed rate by default).");
+            System.exit(1);
+            return;
+        }
+
+        List<DNSNode> queries;
+        try {
+            queries = readQueryLog(logFile);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Could not read query log (" + e.getMessage() + ").");
+            System.exit(1);
+            return;
+        }
+
+        if (port < 0) port = standIn ? DEFAULT_STANDIN_PORT : 53;
+        DNSQueryHandler.setServerPort(port);
+        DNSLoopbackUpstream upstream = null;
+        if (standIn) {
+            upstream = new DNSLoopbackUpstream(port, 300, delayMillis);
+            try {
+                upstream.start();
+            } catch (IOException e) {
+                System.err.println("Could not start the loopback stand-in on port " + port + " (" + e.getMessage() + ").");
+                System.exit(1);
+            }
+            rootServer = upstream.getRootServer();
+        }
+        DNSLookupService.setRootServer(rootServer);
+        if (concurrency <= 0) concurrency = qps > 0 ? 64 : 1;
+
+        replay(queries, qps, concurrency);
+
+        if (upstream != null) upstream.stop();
+    }
+
+    /** Reads a query log.
+     *
+     * @param logFile Name of the query log file.
+     * @return The queries in the log, in recorded order.
+     * @throws IOException if the file could not be read.
+     * @throws IllegalArgumentException if a line has an unknown record type or too many fields.
+     */
+    private static List<DNSNode> readQueryLog(String logFile) throws IOException {
+        List<DNSNode> queries = new ArrayList<>();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(Paths.get(logFile))) {
+            lineNumber++;
+            line = line.split("#", 2)[0].trim();
+            if (line.isEmpty()) continue;
+            String[] fields = line.split("\\s+");
+            if (fields.length > 2)
+                throw new IllegalArgumentException("line " + lineNumber + ": expected hostName [type]");
+            try {
+                RecordType type = fields.length == 2 ? RecordType.valueOf(fields[1].toUpperCase()) : RecordType.A;
+                queries.add(new DNSNode(fields[0], type));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("line " + lineNumber + ": invalid query type " + fields[1]);
+            }
+        }
+        return queries;
+    }
+
+    /** Replays queries through the resolver and prints a report once all of them have completed.
+     *
+     * @param queries     Queries to replay, in recorded order.
+     * @param qps         Target rate in queries per second, or 0 to replay in recorded order.
+     * @param concurrency Number of worker threads.
+     */
+    private static void replay(List<DNSNode> queries, double qps, int concurrency) {
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "load-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long[] latencies = new long[queries.size()];
+        AtomicInteger cacheHits = new AtomicInteger();
+        AtomicInteger emptyResults = new AtomicInteger();
+        long upstreamBefore = DNSQueryHandler.getQueriesSent();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < queries.size(); i++) {
+            int index = i;
+            DNSNode node = queries.get(i);
+            long scheduled;
+            if (qps > 0) {
+                scheduled = start + (long) (i * 1e9 / qps);
+                long wait;
+                while ((wait = scheduled - System.nanoTime()) > 0)
+                    LockSupport.parkNanos(wait);
+            } else {
+                scheduled = -1; // measured from when a worker starts the query
+            }
+            workers.execute(() -> {
+                long begin = scheduled >= 0 ? scheduled : System.nanoTime();
+                if (isCached(node)) cacheHits.incrementAndGet();
+                if (DNSLookupService.getResults(node).isEmpty()) emptyResults.incrementAndGet();
+                latencies[index] = System.nanoTime() - begin;
+            });
+        }
+        workers.shutdown();
+        try {
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        long upstreamQueries = DNSQueryHandler.getQueriesSent() - upstreamBefore;
+
+        Arrays.sort(latencies);
+        int count = queries.size();
+        System.out.printf("%-20s %d%s\n", "Queries:", count,
+                qps > 0 ? String.format(" at target %.1f/s", qps) : " in recorded order");
+        System.out.printf("%-20s %.3f s\n", "Duration:", elapsed / 1e9);
+        System.out.printf("%-20s %.1f queries/s\n", "Throughput:", count / (elapsed / 1e9));
+        System.out.printf("%-20s %.3f ms\n", "Latency p50:", percentile(latencies, 0.50) / 1e6);
+        System.out.printf("%-20s %.3f ms\n", "Latency p99:", percentile(latencies, 0.99) / 1e6);
+        System.out.printf("%-20s %.3f ms\n", "Latency p999:", percentile(latencies, 0.999) / 1e6);
+        System.out.printf("%-20s %.1f %%\n", "Cache hit ratio:", count == 0 ? 0 : 100.0 * cacheHits.get() / count);
+        System.out.printf("%-20s %d\n", "Upstream queries:", upstreamQueries);
+        System.out.printf("%-20s %d\n", "Empty results:", emptyResults.get());
+    }
+
+    /** Checks whether a query can be answered from the cache alone, either with results for the
+     * node itself or with a CNAME for its host name.
+     */
+    private static boolean isCached(DNSNode node) {
+        return !cache.getCachedResults(node).isEmpty() ||
+                !cache.getCachedResults(new DNSNode(node.getHostName(), RecordType.CNAME)).isEmpty();
+    }
+
+    /** Returns the nearest-rank percentile of sorted values, or 0 if there are none.
+     */
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) return 0;
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+}
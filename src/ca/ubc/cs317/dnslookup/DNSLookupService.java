@@ -3,16 +3,27 @@ package ca.ubc.cs317.dnslookup;
 import java.io.Console;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
 
 public class DNSLookupService {
 
     private static boolean p1Flag = false; // isolating part 1
     private static final int MAX_INDIRECTION_LEVEL = 10;
-    private static InetAddress rootServer;
+    private static final int SERVER_THREADS = 64;
+    private static final long DEFAULT_LOOKUP_TIMEOUT = 10000; // milliseconds
+    private static volatile long lookupTimeout = DEFAULT_LOOKUP_TIMEOUT;
+    private static final RootServerPool rootServers = RootServerPool.getInstance();
     private static DNSCache cache = DNSCache.getInstance();
+    private static final ServerHealth serverHealth = ServerHealth.getInstance();
+    private static final int RCODE_NAME_ERROR = 3;
+    private static final int RCODE_REFUSED = 5;
+    private static final long NEGATIVE_TTL_WITHOUT_SOA = 5; // seconds
+    private static DNSPeerCache peerCache = null; // null unless sharing the cache with sibling resolvers
+    private static final RecordType[] NAMESERVER_ADDRESS_TYPES = {RecordType.A, RecordType.AAAA};
 
     /**
      * Main function, called when program is first invoked.
@@ -21,30 +32,88 @@ public class DNSLookupService {
      */
     public static void main(String[] args) {
 
-        if (args.length == 2 && args[1].equals("-p1")) {
-            p1Flag = true;
-        } else if (args.length != 1) {
+        int servePort = -1;
+        String peerAddress = null;
+        String peerAddresses = "";
+        String hintsFile = null;
+        String primeFile = null;
+        boolean validCall = args.length >= 1;
+        try {
+            for (int i = 1; i < args.length && validCall; i++) {
+                if (args[i].equals("-p1"))
+                    p1Flag = true;
+                else if (args[i].equals("-serve") && i + 1 < args.length)
+                    servePort = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-peer") && i + 1 < args.length)
+                    peerAddress = args[++i];
+                else if (args[i].equals("-peers") && i + 1 < args.length)
+                    peerAddresses = args[++i];
+                else if (args[i].equals("-hints") && i + 1 < args.length)
+                    hintsFile = args[++i];
+                else if (args[i].equals("-prime") && i + 1 < args.length)
+                    primeFile = args[++i];
+                else if (args[i].equals("-deadline") && i + 1 < args.length)
+                    lookupTimeout = Long.parseLong(args[++i]);
+                else
+                    validCall = false;
+            }
+        } catch (NumberFormatException e) {
+            validCall = false;
+        }
+        if (!validCall || servePort > 65535 || lookupTimeout < 1 || (!peerAddresses.isEmpty() && peerAddress == null)) {
             System.err.println("Invalid call. Usage:");
-            System.err.println("\tjava -jar DNSLookupService.jar rootServer");
-            System.err.println("where rootServer is the IP address (in dotted form) of the root DNS server to start the search at.");
+            System.err.println("\tjava -jar DNSLookupService.jar rootServer[,rootServer...] [-serve port] [-peer host:port [-peers host:port,...]]");
+            System.err.println("\t\t[-hints rootHintsFile] [-prime primingList] [-deadline ms]");
+            System.err.println("where each rootServer is the IP address (in dotted form) of a root DNS server to start the search at;");
+            System.err.println("lookups use the fastest one that responds.");
+            System.err.println("With -serve, queries from stub resolvers are answered on the given UDP and TCP port instead of");
+            System.err.println("reading commands from the standard input. With -peer, cached results are shared with the");
+            System.err.println("sibling resolvers listed in -peers, through the given address. With -hints and -prime, the cache");
+            System.err.println("is warmed up with the root hints and the names in the priming list before commands or queries");
+            System.err.println("are accepted; the root servers in the hints are added to the others. With -deadline, each lookup");
+            System.err.println("is given up after the given time (default "
+                    + DEFAULT_LOOKUP_TIMEOUT + " ms).");
             System.exit(1);
         }
 
         try {
-            rootServer = InetAddress.getByName(args[0]);
-            System.out.println("Root DNS server is: " + rootServer.getHostAddress());
+            rootServers.setServers(parseServers(args[0]));
+            System.out.println("Root DNS servers are: " + describeServers(rootServers.getServers()));
         } catch (UnknownHostException e) {
             System.err.println("Invalid root server (" + e.getMessage() + ").");
             System.exit(1);
         }
 
+        if (peerAddress != null) {
+            try {
+                List<InetSocketAddress> siblings = new ArrayList<>();
+                for (String address : peerAddresses.split(","))
+                    if (!address.isEmpty()) siblings.add(DNSPeerCache.parseAddress(address));
+                peerCache = new DNSPeerCache(DNSPeerCache.parseAddress(peerAddress), siblings);
+                peerCache.start();
+                System.out.println("Sharing cache through " + peerAddress + " with peers: " + peerAddresses);
+            } catch (IllegalArgumentException | IOException e) {
+                System.err.println("Could not start the peer cache (" + e.getMessage() + ").");
+                System.exit(1);
+            }
+        }
+
         try {
-            DNSQueryHandler.openSocket();
-        } catch (SocketException ex) {
-            ex.printStackTrace();
+            DNSPrimer.prime(hintsFile, primeFile);
+            if (hintsFile != null) {
+                rootServers.addServers(getCachedRootServers());
+                System.out.println("Root DNS servers are: " + describeServers(rootServers.getServers()));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Could not prime the cache (" + e.getMessage() + ").");
             System.exit(1);
         }
 
+        if (servePort >= 0) {
+            serve(servePort);
+            return;
+        }
+
         Scanner in = new Scanner(System.in);
         Console console = System.console();
         do {
@@ -74,17 +143,21 @@ public class DNSLookupService {
                     commandArgs[0].equalsIgnoreCase("exit"))
                 break;
             else if (commandArgs[0].equalsIgnoreCase("server")) {
-                // SERVER: Change root nameserver
+                // SERVER: Change root nameservers
                 if (commandArgs.length == 2) {
                     try {
-                        rootServer = InetAddress.getByName(commandArgs[1]);
-                        System.out.println("Root DNS server is now: " + rootServer.getHostAddress());
+                        rootServers.setServers(parseServers(commandArgs[1]));
+                        System.out.println("Root DNS servers are now: " + describeServers(rootServers.getServers()));
                     } catch (UnknownHostException e) {
                         System.out.println("Invalid root server (" + e.getMessage() + ").");
                     }
                 } else {
-                    System.out.println("Invalid call. Format:\n\tserver IP");
+                    System.out.println("Invalid call. Format:\n\tserver IP[,IP...]");
                 }
+            } else if (commandArgs[0].equalsIgnoreCase("servers")) {
+                // SERVERS: Show the root nameservers, in the order lookups try them
+                System.out.printf("%-40s %-9s %-10s %-9s %s\n", "SERVER", "STATE", "RTT", "RESPONSES", "FAILURES");
+                rootServers.forEachServer((server, state) -> System.out.printf("%-40s %s\n", server, state));
             } else if (commandArgs[0].equalsIgnoreCase("trace")) {
                 // TRACE: Turn trace setting on or off
                 if (commandArgs.length == 2) {
@@ -107,39 +180,215 @@ public class DNSLookupService {
             } else if (commandArgs[0].equalsIgnoreCase("lookup") ||
                     commandArgs[0].equalsIgnoreCase("l")) {
                 // LOOKUP: Find and print all results associated to a name.
-                RecordType type;
+                List<RecordType> types = new ArrayList<>();
                 if (commandArgs.length == 2)
-                    type = RecordType.A;
+                    types.add(RecordType.A);
                 else if (commandArgs.length == 3)
                     try {
-                        type = RecordType.valueOf(commandArgs[2].toUpperCase());
+                        // Several types may be requested at once, separated by commas
+                        for (String typeName : commandArgs[2].split(","))
+                            types.add(RecordType.valueOf(typeName.toUpperCase()));
                     } catch (IllegalArgumentException ex) {
-                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME");
+                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME, PTR");
                         continue;
                     }
                 else {
-                    System.err.println("Invalid call. Format:\n\tlookup hostName [type]");
+                    System.err.println("Invalid call. Format:\n\tlookup hostName [type[,type...]]");
+                    continue;
+                }
+                if (types.size() == 1)
+                    findAndPrintResults(commandArgs[1], types.get(0));
+                else
+                    findAndPrintResults(commandArgs[1], types);
+            } else if (commandArgs[0].equalsIgnoreCase("reverse")) {
+                // REVERSE: Find the host names of a range of addresses
+                try {
+                    int parallelism = ReverseSweep.DEFAULT_PARALLELISM;
+                    if (commandArgs.length == 3) parallelism = Integer.parseInt(commandArgs[2]);
+                    if (commandArgs.length < 2 || commandArgs.length > 3 || parallelism < 1)
+                        throw new NumberFormatException();
+                    ReverseSweep.sweep(commandArgs[1], parallelism);
+                } catch (NumberFormatException ex) {
+                    System.err.println("Invalid call. Format:\n\treverse address/prefixLength [parallelism]");
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Invalid range (" + ex.getMessage() + ").");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("limits")) {
+                // LIMITS: Show or change the limits on queries outstanding to DNS servers
+                if (commandArgs.length == 3) {
+                    try {
+                        int globalLimit = Integer.parseInt(commandArgs[1]);
+                        int serverLimit = Integer.parseInt(commandArgs[2]);
+                        if (globalLimit < 1 || serverLimit < 1) throw new NumberFormatException();
+                        UpstreamLimiter.getInstance().setLimits(globalLimit, serverLimit);
+                    } catch (NumberFormatException ex) {
+                        System.err.println("Invalid call. Format:\n\tlimits [global perServer]");
+                        continue;
+                    }
+                } else if (commandArgs.length != 1) {
+                    System.err.println("Invalid call. Format:\n\tlimits [global perServer]");
+                    continue;
+                }
+                System.out.printf("%-40s %-8s %-9s %-8s %s\n", "SERVER", "LIMIT", "IN FLIGHT", "WAITING", "REJECTED");
+                UpstreamLimiter.getInstance().forEachLimit((server, state) ->
+                        System.out.printf("%-40s %s\n", server, state));
+            } else if (commandArgs[0].equalsIgnoreCase("deadline")) {
+                // DEADLINE: Show or change the time a lookup may take
+                if (commandArgs.length == 2) {
+                    try {
+                        long timeout = Long.parseLong(commandArgs[1]);
+                        if (timeout < 1) throw new NumberFormatException();
+                        setLookupTimeout(timeout);
+                    } catch (NumberFormatException ex) {
+                        System.err.println("Invalid call. Format:\n\tdeadline [milliseconds]");
+                        continue;
+                    }
+                } else if (commandArgs.length != 1) {
+                    System.err.println("Invalid call. Format:\n\tdeadline [milliseconds]");
                     continue;
                 }
-                findAndPrintResults(commandArgs[1], type);
+                System.out.println("Lookup deadline is: " + lookupTimeout + " ms");
+            } else if (commandArgs[0].equalsIgnoreCase("peers")) {
+                // PEERS: Show the resolvers the cache is shared with
+                if (peerCache == null) {
+                    System.out.println("The cache is not shared with any peers.");
+                    continue;
+                }
+                System.out.printf("%-40s %-6s %-8s %-8s %s\n", "PEER", "STATE", "HITS", "MISSES", "TIMEOUTS");
+                peerCache.forEachPeer((peer, state) -> System.out.printf("%-40s %s\n", peer, state));
+            } else if (commandArgs[0].equalsIgnoreCase("health")) {
+                // HEALTH: Show the servers that recently failed
+                System.out.printf("%-40s %-6s %-8s %-8s %s\n", "SERVER", "STATE", "FAILURES", "PROBLEM", "HELD DOWN FOR");
+                serverHealth.forEachServer((server, state) -> System.out.printf("%-40s %s\n", server, state));
+            } else if (commandArgs[0].equalsIgnoreCase("top")) {
+                // TOP: Show the names and servers that drive the load
+                int count = 10;
+                try {
+                    if (commandArgs.length == 2) count = Integer.parseInt(commandArgs[1]);
+                    if (commandArgs.length > 2 || count < 1) throw new NumberFormatException();
+                } catch (NumberFormatException ex) {
+                    System.err.println("Invalid call. Format:\n\ttop [n]");
+                    continue;
+                }
+                QueryStatistics statistics = QueryStatistics.getInstance();
+                printTop("HOTTEST NAMES", "QUERIES", statistics.getHottestNames(count));
+                printTop("WORST CACHE MISSES", "MISSES", statistics.getWorstCacheMisses(count));
+                printTop("BUSIEST SERVERS", "QUERIES", statistics.getBusiestServers(count));
             } else if (commandArgs[0].equalsIgnoreCase("dump")) {
                 // DUMP: Print all results still cached
                 cache.forEachNode(DNSLookupService::printResults);
             } else {
                 System.err.println("Invalid command. Valid commands are:");
-                System.err.println("\tlookup fqdn [type]");
+                System.err.println("\tlookup fqdn [type[,type...]]");
                 System.err.println("\ttrace on|off");
-                System.err.println("\tserver IP");
+                System.err.println("\treverse address/prefixLength [parallelism]");
+                System.err.println("\tserver IP[,IP...]");
+                System.err.println("\tservers");
+                System.err.println("\tlimits [global perServer]");
+                System.err.println("\tdeadline [milliseconds]");
+                System.err.println("\tpeers");
+                System.err.println("\thealth");
+                System.err.println("\ttop [n]");
                 System.err.println("\tdump");
                 System.err.println("\tquit");
             }
 
         } while (true);
 
-        DNSQueryHandler.closeSocket();
+        if (peerCache != null) peerCache.stop();
         System.out.println("Goodbye!");
     }
 
+    /**
+     * Sets the root DNS server that iterative lookups start at.
+     *
+     * @param server Address of the root server.
+     */
+    public static void setRootServer(InetAddress server) {
+        setRootServers(Collections.singletonList(server));
+    }
+
+    /**
+     * Sets the root DNS servers that iterative lookups start at. Each lookup uses the fastest one
+     * that responds; see RootServerPool.
+     *
+     * @param servers Addresses of the root servers.
+     */
+    public static void setRootServers(Collection<InetAddress> servers) {
+        rootServers.setServers(servers);
+    }
+
+    /**
+     * Parses a comma-separated list of server addresses.
+     *
+     * @param list The list.
+     * @return The addresses, in the order listed.
+     * @throws UnknownHostException if an address is not valid, or the list is empty.
+     */
+    private static List<InetAddress> parseServers(String list) throws UnknownHostException {
+        List<InetAddress> servers = new ArrayList<>();
+        for (String address : list.split(",")) {
+            if (!address.isEmpty()) servers.add(InetAddress.getByName(address));
+        }
+        if (servers.isEmpty()) throw new UnknownHostException("no address given");
+        return servers;
+    }
+
+    private static String describeServers(List<InetAddress> servers) {
+        StringJoiner joiner = new StringJoiner(", ");
+        for (InetAddress server : servers) {
+            joiner.add(server.getHostAddress());
+        }
+        return joiner.toString();
+    }
+
+    /**
+     * @return The IPv4 addresses of the root name servers in the cache, e.g. from root hints.
+     */
+    private static List<InetAddress> getCachedRootServers() {
+        List<InetAddress> servers = new ArrayList<>();
+        for (ResourceRecord nameserver : cache.getCachedResults(new DNSNode("", RecordType.NS))) {
+            for (ResourceRecord address : cache.getCachedResults(new DNSNode(nameserver.getTextResult(), RecordType.A))) {
+                servers.add(address.getInetResult());
+            }
+        }
+        return servers;
+    }
+
+    /**
+     * Sets the time each lookup may take. Queries still outstanding when it runs out are
+     * cancelled, and the lookup returns whatever was found by then.
+     *
+     * @param timeoutMillis Time a lookup may take, in milliseconds.
+     */
+    public static void setLookupTimeout(long timeoutMillis) {
+        lookupTimeout = timeoutMillis;
+    }
+
+    /**
+     * Runs as a resolver server for stub clients until the process is terminated.
+     *
+     * @param port Local port to listen on, for both UDP and TCP.
+     */
+    private static void serve(int port) {
+        DNSResolverServer server = new DNSResolverServer(port, SERVER_THREADS);
+        try {
+            server.start();
+        } catch (IOException e) {
+            System.err.println("Could not listen on port " + port + " (" + e.getMessage() + ").");
+            System.exit(1);
+        }
+        System.out.println("Serving DNS queries on port " + port);
+        while (true) {
+            try {
+                Thread.sleep(Long.MAX_VALUE);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        server.stop();
+    }
+
     /**
      * Finds all results for a host name and type and prints them on the standard output.
      *
@@ -148,11 +397,205 @@ public class DNSLookupService {
      */
     private static void findAndPrintResults(String hostName, RecordType type) {
         DNSNode node = new DNSNode(hostName, type);
-        printResults(node, getResults(node, 0));
+        recordQuery(node);
+        LookupDeadline deadline = new LookupDeadline(lookupTimeout);
+        Set<ResourceRecord> results = getResults(node, 0, deadline);
+        deadline.complete();
+        if (deadline.isExpired())
+            System.err.println("Lookup did not complete within " + deadline.getTimeout() + " ms.");
+        printResults(node, results);
+    }
+
+    /**
+     * Finds all results for a host name and several record types and prints them on the standard
+     * output, grouped by type in the order the types were requested.
+     *
+     * @param hostName Fully qualified domain name of the host being searched.
+     * @param types    Record types for search.
+     */
+    private static void findAndPrintResults(String hostName, List<RecordType> types) {
+        for (RecordType type : types) {
+            recordQuery(new DNSNode(hostName, type));
+        }
+        LookupDeadline deadline = new LookupDeadline(lookupTimeout);
+        Map<RecordType, Set<ResourceRecord>> results = getResults(hostName, new ArrayList<>(new LinkedHashSet<>(types)), 0, deadline);
+        deadline.complete();
+        if (deadline.isExpired())
+            System.err.println("Lookup did not complete within " + deadline.getTimeout() + " ms.");
+        for (RecordType type : types) {
+            printResults(new DNSNode(hostName, type), results.get(type));
+        }
     }
 
     /**
-     * Finds all the results for a specific node.
+     * Finds all the results for a host name and several record types at once. The referral chain
+     * down to the authoritative server is walked only once, using the first type that is not yet
+     * cached; the queries for the remaining types are then sent to that server in parallel.
+     *
+     * @param hostName Fully qualified domain name of the host being searched.
+     * @param types    Record types for search.
+     * @return A map from each requested record type to the set of resource records found for it.
+     */
+    public static Map<RecordType, Set<ResourceRecord>> getResults(String hostName, Collection<RecordType> types) {
+        for (RecordType type : types) {
+            recordQuery(new DNSNode(hostName, type));
+        }
+        LookupDeadline deadline = new LookupDeadline(lookupTimeout);
+        Map<RecordType, Set<ResourceRecord>> results = getResults(hostName, new ArrayList<>(new LinkedHashSet<>(types)), 0, deadline);
+        deadline.complete();
+        return results;
+    }
+
+    /**
+     * Finds all the results for a host name and several record types at once.
+     *
+     * @param hostName         Fully qualified domain name of the host being searched.
+     * @param types            Distinct record types for search.
+     * @param indirectionLevel Control to limit the number of recursive calls due to CNAME redirection,
+     *                         as in resolveAsync(DNSNode, int, LookupDeadline).
+     * @param deadline         Time budget of the lookup this is part of.
+     * @return A map from each requested record type to the set of resource records found for it.
+     */
+    private static Map<RecordType, Set<ResourceRecord>> getResults(String hostName, List<RecordType> types,
+                                                                   int indirectionLevel, LookupDeadline deadline) {
+        Map<RecordType, Set<ResourceRecord>> results = new EnumMap<>(RecordType.class);
+        for (RecordType type : types) {
+            results.put(type, Collections.emptySet());
+        }
+        if (p1Flag || types.size() == 1) {
+            RecordType type = types.get(0);
+            results.put(type, getResults(new DNSNode(hostName, type), indirectionLevel, deadline));
+            return results;
+        } else if (indirectionLevel > MAX_INDIRECTION_LEVEL) {
+            System.err.println("Maximum number of indirection levels reached.");
+            return results;
+        }
+
+        // return cached results for the types requested before, here or by a peer, and nothing
+        // for those an authoritative server said recently there is nothing to find
+        List<RecordType> remaining = new ArrayList<>();
+        for (RecordType type : types) {
+            DNSNode node = new DNSNode(hostName, type);
+            Set<ResourceRecord> cachedRes = cache.getCachedResults(node);
+            if (cachedRes.isEmpty() && peerCache != null && peerCache.fetch(node))
+                cachedRes = cache.getCachedResults(node);
+            if (!cachedRes.isEmpty())
+                results.put(type, cachedRes);
+            else if (cache.getCachedNegativeAnswer(node, new ArrayList<>()) == null)
+                remaining.add(type);
+        }
+        if (remaining.isEmpty()) {
+            return results;
+        }
+
+        // walk the referral chain once, then query the answering server for the other types in parallel
+        DNSNode cNameNode = new DNSNode(hostName, RecordType.CNAME);
+        Map<RecordType, CompletableFuture<InetAddress>> finalQueries = new EnumMap<>(RecordType.class);
+        if (cache.getCachedResults(cNameNode).isEmpty()) {
+            InetAddress answeringServer = retrieveResultsFromClosestServer(new DNSNode(hostName, remaining.get(0)), deadline,
+                    Collections.emptySet()).join();
+            if (answeringServer != null && cache.getCachedResults(cNameNode).isEmpty()) {
+                for (RecordType type : remaining.subList(1, remaining.size())) {
+                    DNSNode node = new DNSNode(hostName, type);
+                    // the walk may have found that the name does not exist at all
+                    if (cache.getCachedNegativeAnswer(node, new ArrayList<>()) != null) continue;
+                    finalQueries.put(type, retrieveResultsFromServer(node, answeringServer, null, deadline,
+                            Collections.emptySet()));
+                }
+            }
+        }
+
+        List<RecordType> unanswered = new ArrayList<>();
+        for (RecordType type : remaining) {
+            DNSNode node = new DNSNode(hostName, type);
+            CompletableFuture<InetAddress> finalQuery = finalQueries.get(type);
+            boolean queryFailed = finalQuery != null && finalQuery.join() == null;
+            Set<ResourceRecord> cachedRes = cache.getCachedResults(node);
+            if (!cachedRes.isEmpty())
+                results.put(type, cachedRes);
+            else if (queryFailed)
+                // the answering server did not respond for this type, so walk the hierarchy for it alone
+                results.put(type, getResults(node, indirectionLevel, deadline));
+            else
+                unanswered.add(type);
+        }
+
+        // check CNAME for the types still unanswered
+        Set<ResourceRecord> records = cache.getCachedResults(cNameNode);
+        if (!unanswered.isEmpty() && !records.isEmpty()) {
+            for (ResourceRecord r1 : records) {
+                Map<RecordType, Set<ResourceRecord>> res = getResults(r1.getTextResult(), unanswered, indirectionLevel + 1, deadline);
+                res.forEach((type, typeResults) -> {
+                    if (!typeResults.isEmpty()) results.put(type, typeResults);
+                });
+                if (res.values().stream().anyMatch(typeResults -> !typeResults.isEmpty())) {
+                    break;
+                }
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Finds all the results for a specific node, following CNAME records. Results are taken from
+     * the cache when possible. This blocks until the lookup is complete; see resolveAsync.
+     *
+     * @param node Host and record type to be used for search.
+     * @return A set of resource records corresponding to the specific query requested.
+     */
+    public static Set<ResourceRecord> getResults(DNSNode node) {
+        return resolveAsync(node).join();
+    }
+
+    /**
+     * Finds all the results for a specific node, waiting for the lookup to complete.
+     *
+     * @param node             Host and record type to be used for search.
+     * @param indirectionLevel Control to limit the number of recursive calls due to CNAME redirection,
+     *                         as in resolveAsync(DNSNode, int, LookupDeadline).
+     * @param deadline         Time budget of the lookup this is part of.
+     * @return A set of resource records corresponding to the specific query requested.
+     */
+    private static Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel, LookupDeadline deadline) {
+        return resolveAsync(node, indirectionLevel, deadline, Collections.emptySet()).join();
+    }
+
+    /**
+     * Finds all the results for a specific node, following CNAME records, without blocking the
+     * calling thread. Every step of the lookup (each referral, each lookup of a name server
+     * address, each CNAME) continues when the response it depends on arrives, so a lookup in
+     * progress holds no thread while it waits for DNS servers, and many lookups can be in progress
+     * at once on a small number of threads.
+     *
+     * @param node Host and record type to be used for search.
+     * @return A future completed with the set of resource records corresponding to the query,
+     * which is empty if none could be found.
+     */
+    public static CompletableFuture<Set<ResourceRecord>> resolveAsync(DNSNode node) {
+        return resolveAsync(node, lookupTimeout);
+    }
+
+    /**
+     * Finds all the results for a specific node without blocking, as resolveAsync(DNSNode), but
+     * within a given time. Queries still outstanding when the time runs out are cancelled, and
+     * the lookup completes with the results found by then.
+     *
+     * @param node          Host and record type to be used for search.
+     * @param timeoutMillis Time the lookup may take, in milliseconds.
+     * @return A future completed with the set of resource records corresponding to the query,
+     * which is empty if none could be found in time.
+     */
+    public static CompletableFuture<Set<ResourceRecord>> resolveAsync(DNSNode node, long timeoutMillis) {
+        recordQuery(node);
+        LookupDeadline deadline = new LookupDeadline(timeoutMillis);
+        return resolveAsync(node, 0, deadline, Collections.emptySet())
+                .exceptionally(ex -> Collections.emptySet())
+                .whenComplete((results, ex) -> deadline.complete());
+    }
+
+    /**
+     * Finds all the results for a specific node without blocking.
      *
      * @param node             Host and record type to be used for search.
      * @param indirectionLevel Control to limit the number of recursive calls due to CNAME redirection.
@@ -160,61 +603,160 @@ public class DNSLookupService {
      *                         regarding CNAME results should increment this value by 1. Once this value
      *                         reaches MAX_INDIRECTION_LEVEL, the function prints an error message and
      *                         returns an empty set.
-     * @return A set of resource records corresponding to the specific query requested.
+     * @param deadline         Time budget of the lookup this is part of.
+     * @param resolving        Host names, in lower case, of the name servers whose addresses the
+     *                         enclosing lookup is resolving to get here. They are not resolved again,
+     *                         so a lookup cannot loop through delegations that depend on each other.
+     * @return A future completed with the set of resource records corresponding to the query.
      */
-    private static Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel) {
+    private static CompletableFuture<Set<ResourceRecord>> resolveAsync(DNSNode node, int indirectionLevel,
+                                                                       LookupDeadline deadline, Set<String> resolving) {
 
         if (p1Flag) { // For isolating part 1 testing only
-            retrieveResultsFromServer(node, rootServer);
-            return Collections.emptySet();
+            return retrieveResultsFromServer(node, rootServers.select().get(0), "", deadline, resolving)
+                    .thenApply(server -> Collections.emptySet());
         } else if (indirectionLevel > MAX_INDIRECTION_LEVEL) {
             System.err.println("Maximum number of indirection levels reached.");
-            return Collections.emptySet();
+            return CompletableFuture.completedFuture(Collections.emptySet());
         }
 
-        // return cached results if query requested before
+        // return cached results if query requested before, then
+        // ask the peer resolver that owns this node, if any, before resolving it ourselves
+        return getCachedOrAliasedResults(node, indirectionLevel, deadline, resolving).thenCompose(cachedRes -> {
+            if (!cachedRes.isEmpty() || peerCache == null) return CompletableFuture.completedFuture(cachedRes);
+            return peerCache.fetchAsync(node)
+                    .thenCompose(fetched -> fetched ? getCachedOrAliasedResults(node, indirectionLevel, deadline, resolving)
+                            : CompletableFuture.completedFuture(Collections.emptySet()));
+        }).thenCompose(cachedRes -> {
+            // an authoritative server said recently that there is nothing to find
+            if (!cachedRes.isEmpty() || cache.getCachedNegativeAnswer(node, new ArrayList<>()) != null)
+                return CompletableFuture.completedFuture(cachedRes);
+            // retrieve results from server and return cached results if exists
+            return retrieveResultsFromClosestServer(node, deadline, resolving)
+                    .thenCompose(server -> getCachedOrAliasedResults(node, indirectionLevel, deadline, resolving));
+        });
+    }
+
+    /**
+     * Returns the cached results for a node or, if there are none, the results for the targets
+     * of the CNAME records cached for its host name, which are looked up as needed.
+     *
+     * @param node             Host and record type to be used for search.
+     * @param indirectionLevel Number of CNAME records followed so far.
+     * @param deadline         Time budget of the lookup this is part of.
+     * @param resolving        Name servers being resolved, as in resolveAsync.
+     * @return A future completed with the results, or with an empty set if there are none.
+     */
+    private static CompletableFuture<Set<ResourceRecord>> getCachedOrAliasedResults(DNSNode node, int indirectionLevel,
+                                                                                    LookupDeadline deadline,
+                                                                                    Set<String> resolving) {
         Set<ResourceRecord> cachedRes = cache.getCachedResults(node);
         if (cachedRes.size() > 0) {
-            return cachedRes;
+            return CompletableFuture.completedFuture(cachedRes);
         }
         // check CNAME
-        cachedRes = cache.getCachedResults(new DNSNode(node.getHostName(), RecordType.CNAME));
-        if (cachedRes.size() > 0) {
-            for (ResourceRecord rr : cachedRes) {
-                DNSNode node2 = new DNSNode(rr.getTextResult(), node.getType());
-                Set<ResourceRecord> res = getResults(node2, (indirectionLevel+1));
-//                for (ResourceRecord r : res) {
-//                    ResourceRecord newRecord = new ResourceRecord(node.getHostName(), node.getType(), r.getTTL(), r.getInetResult());
-//                    cache.addResult(newRecord);
-//                }
-                // TODO: Check other CNAMES if results for that CNAME is empty before returning
-                if (!res.isEmpty()) {
-                    return res;
-                }
-            }
+        List<ResourceRecord> cNames = new ArrayList<>(cache.getCachedResults(new DNSNode(node.getHostName(), RecordType.CNAME)));
+        return followCNames(node, cNames, 0, indirectionLevel, deadline, resolving);
+    }
+
+    /**
+     * Looks up the targets of CNAME records in turn, until one of them has results.
+     *
+     * @param node             Host and record type of the original query.
+     * @param cNames           CNAME records for the host name of the node.
+     * @param index            Index of the next CNAME record to follow.
+     * @param indirectionLevel Number of CNAME records followed so far.
+     * @param deadline         Time budget of the lookup this is part of.
+     * @param resolving        Name servers being resolved, as in resolveAsync.
+     * @return A future completed with the results for the first target that has any, or with an
+     * empty set if none has.
+     */
+    private static CompletableFuture<Set<ResourceRecord>> followCNames(DNSNode node, List<ResourceRecord> cNames,
+                                                                       int index, int indirectionLevel,
+                                                                       LookupDeadline deadline, Set<String> resolving) {
+        if (index >= cNames.size()) {
+            return CompletableFuture.completedFuture(Collections.emptySet());
         }
+        DNSNode target = new DNSNode(cNames.get(index).getTextResult(), node.getType());
+        return resolveAsync(target, indirectionLevel + 1, deadline, resolving).thenCompose(res -> !res.isEmpty()
+                ? CompletableFuture.completedFuture(res)
+                : followCNames(node, cNames, index + 1, indirectionLevel, deadline, resolving));
+    }
 
-        // retrieve results from server and return cached results if exists
-        retrieveResultsFromServer(node, rootServer);
-        cachedRes = cache.getCachedResults(node);
-        if (cachedRes.size() > 0) {
-            return cachedRes;
+    /**
+     * Tries candidates in turn until one of them leads to a server that answers.
+     *
+     * @param candidates Candidates to try, in order.
+     * @param index      Index of the next candidate to try.
+     * @param attempt    Tries one candidate, giving the address of the server that gave the final
+     *                   answer, or null.
+     * @return A future completed with the address given by the first successful attempt, or with
+     * null if every attempt failed.
+     */
+    private static <T> CompletableFuture<InetAddress> firstAnswer(List<T> candidates, int index,
+                                                                  Function<T, CompletableFuture<InetAddress>> attempt) {
+        if (index >= candidates.size()) {
+            return CompletableFuture.completedFuture(null);
         }
+        return attempt.apply(candidates.get(index)).thenCompose(answeringServer -> answeringServer != null
+                ? CompletableFuture.completedFuture(answeringServer)
+                : firstAnswer(candidates, index + 1, attempt));
+    }
 
-        // check CNAME
-        Set<ResourceRecord> records = cache.getCachedResults(new DNSNode(node.getHostName(), RecordType.CNAME));
-        if (records.size() > 0) {
-            for (ResourceRecord r1 : records) {
-                DNSNode node3 = new DNSNode(r1.getTextResult(), node.getType());
-                Set<ResourceRecord> res = getResults(node3, (indirectionLevel+1));
-                if (!res.isEmpty()) {
-                    return res;
-                }
+    /**
+     * Retrieves DNS results starting at the closest enclosing zone whose name servers are cached
+     * with an address, e.g. from priming or from earlier lookups, instead of always starting at
+     * the root. If no such zone is cached, or its servers do not answer, the search falls back to
+     * shorter zones and finally to the root servers of the pool, fastest first. Should none of
+     * those answer either, any other root servers known from the cache are tried.
+     *
+     * @param node     Host name and record type to be used for the query.
+     * @param deadline  Time budget of the lookup this is part of.
+     * @param resolving Name servers being resolved, as in resolveAsync.
+     * @return A future completed with the address of the server that gave the final answer for
+     * the node, or with null if no server could be reached for it.
+     */
+    private static CompletableFuture<InetAddress> retrieveResultsFromClosestServer(DNSNode node, LookupDeadline deadline,
+                                                                                   Set<String> resolving) {
+        List<Set<ResourceRecord>> zones = new ArrayList<>();
+        String zone = node.getHostName();
+        while (!zone.isEmpty()) {
+            Set<ResourceRecord> nameservers = cache.getCachedResults(new DNSNode(zone, RecordType.NS));
+            if (hasCachedAddress(nameservers)) {
+                zones.add(nameservers);
             }
+            int dot = zone.indexOf('.');
+            zone = dot < 0 ? "" : zone.substring(dot + 1);
         }
 
-        // nothing came back so return empty set
-        return Collections.emptySet();
+        List<InetAddress> roots = rootServers.select();
+        return firstAnswer(zones, 0, nameservers -> queryNextLevel(node, nameservers, deadline, resolving))
+                .thenCompose(answeringServer -> answeringServer != null
+                        ? CompletableFuture.completedFuture(answeringServer)
+                        : firstAnswer(roots, 0, rootServer -> retrieveResultsFromServer(node, rootServer, "", deadline, resolving,
+                                roots.subList(roots.indexOf(rootServer) + 1, roots.size()).stream()
+                                        .anyMatch(rootServers::isHealthy))))
+                .thenCompose(answeringServer -> {
+                    if (answeringServer != null) return CompletableFuture.completedFuture(answeringServer);
+                    Set<ResourceRecord> rootNameservers = cache.getCachedResults(new DNSNode("", RecordType.NS));
+                    return hasCachedAddress(rootNameservers) ? queryNextLevel(node, rootNameservers, deadline, resolving)
+                            : CompletableFuture.completedFuture(null);
+                });
+    }
+
+    /**
+     * Checks whether the address of at least one of a set of name servers is cached.
+     *
+     * @param nameservers NS records for a zone.
+     * @return true if an A record is cached for the host name of any of the name servers.
+     */
+    private static boolean hasCachedAddress(Set<ResourceRecord> nameservers) {
+        for (ResourceRecord record : nameservers) {
+            if (!cache.getCachedResults(new DNSNode(record.getTextResult(), RecordType.A)).isEmpty()) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -222,25 +764,102 @@ public class DNSLookupService {
      * and the query is repeated with a new server if the provided one is non-authoritative.
      * Results are stored in the cache.
      *
-     * @param node   Host name and record type to be used for the query.
-     * @param server Address of the server to be used for the query.
+     * @param node      Host name and record type to be used for the query.
+     * @param server    Address of the server to be used for the query.
+     * @param zone      Zone the server was given as a name server for ("" for the root), or null if
+     *                  not known. The server is held down for the zone if it turns out to be lame.
+     * @param deadline  Time budget of the lookup this is part of. Nothing is sent once it has run out.
+     * @param resolving Name servers being resolved, as in resolveAsync.
+     * @return A future completed with the address of the server that gave the final answer for
+     * the node (possibly an authoritative empty answer), or with null if no server could be
+     * reached for it.
      */
-    private static void retrieveResultsFromServer(DNSNode node, InetAddress server) {
-        byte[] message = new byte[512]; // query is no longer than 512 bytes
+    private static CompletableFuture<InetAddress> retrieveResultsFromServer(DNSNode node, InetAddress server,
+                                                                            String zone, LookupDeadline deadline,
+                                                                            Set<String> resolving) {
+        return retrieveResultsFromServer(node, server, zone, deadline, resolving, false);
+    }
 
-        try {
-            DNSServerResponse serverResponse = DNSQueryHandler.buildAndSendQuery(message, server, node);
+    /**
+     * Retrieves DNS results from a specified DNS server, as
+     * retrieveResultsFromServer(DNSNode, InetAddress, String, LookupDeadline, Set).
+     *
+     * @param node      Host name and record type to be used for the query.
+     * @param server    Address of the server to be used for the query.
+     * @param zone      Zone the server was given as a name server for ("" for the root), or null if
+     *                  not known.
+     * @param deadline  Time budget of the lookup this is part of.
+     * @param resolving Name servers being resolved, as in resolveAsync.
+     * @param failOver  true if a healthy root server of the pool is left to try should this one, a
+     *                  root server of the pool too, not respond. It is then given a single attempt,
+     *                  only as long as its response time warrants, since failing over is faster than
+     *                  asking it again.
+     * @return A future completed with the address of the server that gave the final answer for
+     * the node, or with null if no server could be reached for it.
+     */
+    private static CompletableFuture<InetAddress> retrieveResultsFromServer(DNSNode node, InetAddress server,
+                                                                            String zone, LookupDeadline deadline,
+                                                                            Set<String> resolving, boolean failOver) {
+        if (deadline.isExpired()) return CompletableFuture.completedFuture(null);
+        // the pool keeps track of its own servers, which are probed until they recover, so they
+        // are not held down as well
+        boolean pooled = "".equals(zone) && rootServers.contains(server);
+        long sent = System.nanoTime();
+        CompletableFuture<DNSServerResponse> query = pooled && failOver
+                ? DNSQueryHandler.sendQueryAsync(server, node, deadline.getDeadline(), rootServers.getAttemptTimeout(server))
+                : DNSQueryHandler.sendQueryAsync(server, node, deadline.getDeadline());
+        return deadline.track(query)
+                .handle((serverResponse, ex) -> {
+                    // no exception and no response means every attempt timed out, unless the
+                    // lookup ran out of time; otherwise the query could not be sent, or was cancelled
+                    if (ex == null && serverResponse == null && !deadline.isExpired()) {
+                        if (pooled)
+                            rootServers.recordFailure(server);
+                        else
+                            serverHealth.recordFailure(server, zone, ServerHealth.Problem.TIMEOUT);
+                    } else if (pooled && serverResponse != null) {
+                        rootServers.recordResponse(server, (System.nanoTime() - sent) / 1e6);
+                    }
+                    return serverResponse;
+                })
+                .thenCompose(serverResponse -> {
+                    if (serverResponse == null) return CompletableFuture.completedFuture(null);
+                    if (serverResponse.getResponseCode() == RCODE_REFUSED) {
+                        serverHealth.recordFailure(server, zone, ServerHealth.Problem.REFUSED);
+                        return CompletableFuture.completedFuture(null);
+                    }
 
-            Set<ResourceRecord> nameservers = DNSQueryHandler.decodeAndCacheResponse(serverResponse.getTransactionID(),
-                    serverResponse.getResponse(),
-                    cache);
-            if (nameservers == null) nameservers = Collections.emptySet();
+                    // only records for names the server has authority over are kept; when its zone
+                    // is not known, it is at least the server that answers for the host name
+                    Set<ResourceRecord> nameservers;
+                    try {
+                        nameservers = DNSQueryHandler.decodeAndCacheResponse(serverResponse.getTransactionID(),
+                                serverResponse.getResponse(),
+                                cache, zone != null ? zone : node.getHostName());
+                    } catch (IllegalArgumentException | IndexOutOfBoundsException ex) {
+                        return CompletableFuture.completedFuture(null);
+                    }
 
-            if (p1Flag) return; // For testing part 1 only
+                    if (p1Flag) return CompletableFuture.completedFuture(server); // For testing part 1 only
 
-            queryNextLevel(node, nameservers);
+                    // Base case: the server answered the node or gave a CNAME for it, or is authoritative
+                    // for it and has nothing more to give
+                    if (isAnswered(node) || serverResponse.isAuthoritative()) {
+                        serverHealth.recordSuccess(server, zone);
+                        if (!isAnswered(node)) cacheNegativeAnswer(node, serverResponse);
+                        return CompletableFuture.completedFuture(server);
+                    }
 
-        } catch (IOException | NullPointerException ignored){}
+                    // A server that neither answers nor refers the query to a zone below its own
+                    // is lame for its zone
+                    if (serverResponse.getResponseCode() == 0 && !isReferralBelow(nameservers, zone)) {
+                        if (zone != null)
+                            serverHealth.recordFailure(server, zone, ServerHealth.Problem.LAME);
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    serverHealth.recordSuccess(server, zone);
+                    return queryNextLevel(node, nameservers, deadline, resolving);
+                });
     }
 
     /**
@@ -248,60 +867,201 @@ public class DNSLookupService {
      *
      * @param node        Host name and record type of the query.
      * @param nameservers List of name servers returned from the previous level to query the next level.
+     * @param deadline    Time budget of the lookup this is part of.
+     * @param resolving   Name servers being resolved, as in resolveAsync.
+     * @return A future completed with the address of the server that gave the final answer for
+     * the node, or with null if none did.
      */
-    private static void queryNextLevel(DNSNode node, Set<ResourceRecord> nameservers) {
-        // Base case: Check if the actual node we want is already in the cache, if so then just return
-        Set<ResourceRecord> cachedRes = cache.getCachedResults(node);
-        if (!cachedRes.isEmpty()) {
-            return;
-        }
-
-        // Return if cname base case
-        if (cachedRes.iterator().hasNext()) {
-            cachedRes.iterator().next().getType().equals(RecordType.CNAME);
-            return;
-        }
-
-        // We don't have the actual node so we need to check the Authority section for the next level
+    private static CompletableFuture<InetAddress> queryNextLevel(DNSNode node, Set<ResourceRecord> nameservers,
+                                                                 LookupDeadline deadline, Set<String> resolving) {
+        // We don't have the actual node so we need to check the Authority section for the next level.
+        // Name servers whose address we already have (either bc we queried before or it was in the
+        // additional records) are tried first, in order. Servers that are held down are only tried
+        // once every other server has failed. Name servers without an address inside the zone
+        // itself are skipped: looking them up would only lead back to this referral.
+        String zone = nameservers.isEmpty() ? null : nameservers.iterator().next().getHostName();
+        List<InetAddress> gluedAddresses = new ArrayList<>();
+        List<InetAddress> heldDownAddresses = new ArrayList<>();
+        List<String> gluelessNameServers = new ArrayList<>();
         for (ResourceRecord record : nameservers) {
             DNSNode newNode = new DNSNode(record.getTextResult(), RecordType.A);
             Set<ResourceRecord> results = cache.getCachedResults(newNode);
-            if (!results.isEmpty()) {
-            // Cache has results, either bc we queried before or it was in the additional records
-                for (ResourceRecord result : results) {
-                    retrieveResultsFromServer(node, result.getInetResult());
-                    // Check if we got an answer at that level
-                    if (!cache.getCachedResults(node).isEmpty()) {
-                        return;
-                    }
-                    // Check if CNAME was received at that level
-                    DNSNode cNameNode = new DNSNode(node.getHostName(), RecordType.CNAME);
-                    if (!cache.getCachedResults(cNameNode).isEmpty()) {
-                        return;
-                    }
+            if (results.isEmpty()) {
+                if (!isWithin(record.getTextResult(), zone)) gluelessNameServers.add(record.getTextResult());
+                continue;
+            }
+            for (ResourceRecord result : results) {
+                if (serverHealth.isHeldDown(result.getInetResult(), zone))
+                    heldDownAddresses.add(result.getInetResult());
+                else
+                    gluedAddresses.add(result.getInetResult());
+            }
+        }
 
-                }
-//                return;
-            } else {
-            // Make a call to the root server with the NS record text result name
-                retrieveResultsFromServer(newNode, rootServer);
-            // Retrieve the newNode from the cache and retrieveResultsFromServer to it using the original node and newNode ip address
-                Set<ResourceRecord> middleDNSRecordResults = cache.getCachedResults(newNode);
-                for (ResourceRecord result : middleDNSRecordResults) {
-                    retrieveResultsFromServer(node, result.getInetResult());
-                    // Check if we got an answer at that level
-                    if (!cache.getCachedResults(node).isEmpty()) {
-                        return;
+        return firstAnswer(gluedAddresses, 0, address -> retrieveResultsFromServer(node, address, zone, deadline, resolving))
+                .thenCompose(answeringServer -> answeringServer != null || gluelessNameServers.isEmpty()
+                        ? CompletableFuture.completedFuture(answeringServer)
+                        : queryGluelessNameServers(node, gluelessNameServers, zone, deadline, resolving))
+                .thenCompose(answeringServer -> answeringServer != null
+                        ? CompletableFuture.completedFuture(answeringServer)
+                        : firstAnswer(heldDownAddresses, 0, address -> retrieveResultsFromServer(node, address, zone, deadline, resolving)));
+    }
+
+    /**
+     * Resolves the addresses of name servers for which no glue was provided, and queries the
+     * next level through them. The A and AAAA lookups for all the name servers are started at
+     * once, and the query continues with the addresses of whichever lookup completes first;
+     * addresses from lookups completing later are tried in turn if those fail. Lookups that are
+     * still running once an answer is found are left to complete in the background, so their
+     * results still end up in the cache. Name servers that the enclosing lookup is already
+     * resolving are not looked up again.
+     *
+     * @param node        Host name and record type of the query.
+     * @param nameServers Host names of the name servers for the next level.
+     * @param zone        Zone the name servers were given for, or null if not known.
+     * @param deadline    Time budget of the lookup this is part of.
+     * @param resolving   Name servers being resolved, as in resolveAsync.
+     * @return A future completed with the address of the server that gave the final answer for
+     * the node, or with null if none did.
+     */
+    private static CompletableFuture<InetAddress> queryGluelessNameServers(DNSNode node, List<String> nameServers,
+                                                                           String zone, LookupDeadline deadline,
+                                                                           Set<String> resolving) {
+        CompletableFuture<InetAddress> answer = new CompletableFuture<>();
+        // attempts through the addresses found are chained, so only one server is queried at a time
+        List<CompletableFuture<InetAddress>> attempts = new ArrayList<>();
+        attempts.add(CompletableFuture.completedFuture(null));
+
+        List<CompletableFuture<Void>> addressLookups = new ArrayList<>();
+        for (String nameServer : nameServers) {
+            if (resolving.contains(nameServer.toLowerCase())) continue;
+            Set<String> nowResolving = new HashSet<>(resolving);
+            nowResolving.add(nameServer.toLowerCase());
+            for (RecordType type : NAMESERVER_ADDRESS_TYPES) {
+                DNSNode addressNode = new DNSNode(nameServer, type);
+                addressLookups.add(resolveAsync(addressNode, 0, deadline, nowResolving).thenAccept(addresses -> {
+                    // servers that are held down go last
+                    List<InetAddress> serverAddresses = new ArrayList<>();
+                    for (ResourceRecord address : addresses) {
+                        if (address.getInetResult() != null) serverAddresses.add(address.getInetResult());
                     }
-                    // Check if CNAME was received at that level
-                    DNSNode cNameNode = new DNSNode(node.getHostName(), RecordType.CNAME);
-                    if (!cache.getCachedResults(cNameNode).isEmpty()) {
-                        return;
+                    serverAddresses.sort(Comparator.comparing(address -> serverHealth.isHeldDown(address, zone)));
+                    CompletableFuture<InetAddress> attempt;
+                    synchronized (attempts) {
+                        attempt = attempts.get(0).thenCompose(answeringServer -> answeringServer != null
+                                ? CompletableFuture.completedFuture(answeringServer)
+                                : firstAnswer(serverAddresses, 0, address -> retrieveResultsFromServer(node, address, zone, deadline, resolving)));
+                        attempts.set(0, attempt);
                     }
-                }
+                    attempt.thenAccept(answeringServer -> {
+                        if (answeringServer != null) answer.complete(answeringServer);
+                    });
+                }));
+            }
+        }
+
+        CompletableFuture.allOf(addressLookups.toArray(new CompletableFuture<?>[0])).whenComplete((done, ex) -> {
+            synchronized (attempts) {
+                attempts.get(0).thenAccept(answer::complete);
             }
+        });
+        return answer;
+    }
+
+    /**
+     * Records a query made through the public interface in the query statistics.
+     *
+     * @param node Host name and record type of the query.
+     */
+    private static void recordQuery(DNSNode node) {
+        QueryStatistics.getInstance().recordQuery(node, !cache.getCachedAnswer(node).isEmpty());
+    }
+
+    /**
+     * Checks whether a set of NS records refers a query to a zone below the zone of the server
+     * that gave them, as a proper referral does.
+     *
+     * @param nameservers NS records from the response of the server.
+     * @param zone        Zone the server was queried for ("" for the root), or null if not known,
+     *                    in which case any referral is accepted.
+     * @return true if the records refer to a zone below the zone of the server.
+     */
+    private static boolean isReferralBelow(Set<ResourceRecord> nameservers, String zone) {
+        for (ResourceRecord record : nameservers) {
+            String referred = record.getHostName().toLowerCase();
+            if (zone == null || (zone.isEmpty() ? !referred.isEmpty() : referred.endsWith("." + zone.toLowerCase())))
+                return true;
         }
+        return false;
+    }
 
+    /**
+     * Checks whether a host name is in a zone below the root: the zone name itself, or a name
+     * ending with it.
+     *
+     * @param hostName Host name to check.
+     * @param zone     Zone name ("" for the root), or null if not known.
+     * @return true if the zone is known, is not the root, and holds the host name.
+     */
+    private static boolean isWithin(String hostName, String zone) {
+        if (zone == null || zone.isEmpty()) return false;
+        String name = hostName.toLowerCase();
+        return name.equals(zone.toLowerCase()) || name.endsWith("." + zone.toLowerCase());
+    }
+
+    /**
+     * Caches an authoritative response that has no records for a query: either the host name
+     * does not exist (NXDOMAIN), or it has no records of the type (NODATA). The answer is cached
+     * for the TTL of the SOA record in the authority section, as decoded by DNSResponseParser; a
+     * response without one is only cached for a few seconds, long enough for the clients waiting
+     * for this lookup to be told. A response with records in its answer section is not cached
+     * as negative, even if none of its records could be decoded.
+     *
+     * @param node           Host name and record type of the query.
+     * @param serverResponse The authoritative response, already checked to be valid.
+     */
+    private static void cacheNegativeAnswer(DNSNode node, DNSServerResponse serverResponse) {
+        int responseCode = serverResponse.getResponseCode();
+        if (responseCode != 0 && responseCode != RCODE_NAME_ERROR) return;
+        DNSResponseParser parser = new DNSResponseParser(serverResponse.getResponse());
+        if (parser.getRecordCount(DNSResponseParser.Section.ANSWER) != 0) return;
+        Set<ResourceRecord> soa = new HashSet<>();
+        parser.parse(DNSResponseParser.collecting(soa, RecordType.SOA, DNSResponseParser.Section.AUTHORITY));
+        long ttl = soa.isEmpty() ? NEGATIVE_TTL_WITHOUT_SOA : soa.iterator().next().getTTL();
+        cache.addNegativeAnswer(node, responseCode == RCODE_NAME_ERROR ? DNSCache.NegativeAnswer.NAME_ERROR
+                : DNSCache.NegativeAnswer.NO_DATA, ttl);
+    }
+
+    /**
+     * Checks whether a query has been answered, either with results for the node itself or with
+     * a CNAME for its host name.
+     *
+     * @param node Host name and record type of the query.
+     * @return true if the node or a CNAME for its host name is cached, false otherwise.
+     */
+    private static boolean isAnswered(DNSNode node) {
+        if (!cache.getCachedResults(node).isEmpty()) {
+            return true;
+        }
+        DNSNode cNameNode = new DNSNode(node.getHostName(), RecordType.CNAME);
+        return !cache.getCachedResults(cNameNode).isEmpty();
+    }
+
+    /**
+     * Prints one table of the top command. Counts are estimates that fade over time, so they are
+     * printed with one decimal.
+     *
+     * @param title   Heading of the first column.
+     * @param counted What the counts are.
+     * @param entries Keys and counts, most frequent first.
+     */
+    private static void printTop(String title, String counted, List<Map.Entry<String, Double>> entries) {
+        System.out.printf("%-40s %s\n", title, counted);
+        if (entries.isEmpty())
+            System.out.println("(none)");
+        for (Map.Entry<String, Double> entry : entries) {
+            System.out.printf("%-40s %.1f\n", entry.getKey(), entry.getValue());
+        }
     }
 
     /**
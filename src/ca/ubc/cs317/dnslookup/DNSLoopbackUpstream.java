@@ -0,0 +1,204 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/** A stand-in for the DNS hierarchy, served entirely on the loopback interface so the resolver
+ * can be exercised offline. Three servers listen on the same port at different loopback
+ * addresses, each playing one level of the hierarchy for any name:
+ * <ul>
+ *     <li>127.0.0.1 is the root, and refers every name to the server for its top-level domain;</li>
+ *     <li>127.0.0.2 serves every top-level domain, and refers names to the server for their
+ *     second-level domain;</li>
+ *     <li>127.0.0.3 is authoritative for every second-level domain. It answers A and AAAA
+ *     queries with addresses derived from the host name, and NS queries for the domain itself.
+ *     Names whose first label starts with "alias" get a CNAME to the "www" host of their domain,
+ *     and names whose first label starts with "nx" do not exist.</li>
+ * </ul>
+ * Since the resolver sends every query to the same port, the port must be set with
+ * DNSQueryHandler.setServerPort when it is not the standard one.
+ */
+public class DNSLoopbackUpstream {
+
+    private static final String ROOT_ADDRESS = "127.0.0.1";
+    private static final String TLD_ADDRESS = "127.0.0.2";
+    private static final String AUTHORITATIVE_ADDRESS = "127.0.0.3";
+
+    private final int port;
+    private final long ttl;
+    private final long delayMillis;
+    private final List<DatagramSocket> sockets = new ArrayList<>();
+    private final ScheduledExecutorService delayedReplies = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "loopback-upstream-reply");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Creates a stand-in hierarchy. It does not answer queries until it is started.
+     *
+     * @param port        Port the three servers listen on.
+     * @param ttl         TTL, in seconds, of every record returned.
+     * @param delayMillis Delay added before each response is sent, to emulate network latency.
+     */
+    public DNSLoopbackUpstream(int port, long ttl, long delayMillis) {
+        this.port = port;
+        this.ttl = ttl;
+        this.delayMillis = delayMillis;
+    }
+
+    /** Runs the stand-in hierarchy on its own until the process is terminated.
+     *
+     * @param args port, optionally followed by the TTL in seconds and the response delay in milliseconds.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("Invalid call. Usage:");
+            System.err.println("\tjava -cp DNSLookupService.jar ca.ubc.cs317.dnslookup.DNSLoopbackUpstream port [ttl [delayMillis]]");
+            System.exit(1);
+        }
+        DNSLoopbackUpstream upstream = new DNSLoopbackUpstream(Integer.parseInt(args[0]),
+                args.length > 1 ? Long.parseLong(args[1]) : 300,
+                args.length > 2 ? Long.parseLong(args[2]) : 0);
+        upstream.start();
+        System.out.println("Loopback root server is " + upstream.getRootServer().getHostAddress()
+                + ", port " + args[0]);
+        Thread.sleep(Long.MAX_VALUE);
+    }
+
+    /** Binds the three servers and starts answering queries on background threads.
+     *
+     * @throws IOException if any of the servers could not be bound.
+     */
+    public void start() throws IOException {
+        try {
+            for (String address : new String[]{ROOT_ADDRESS, TLD_ADDRESS, AUTHORITATIVE_ADDRESS}) {
+                DatagramSocket socket = new DatagramSocket(new InetSocketAddress(InetAddress.getByName(address), port));
+                sockets.add(socket);
+                Thread thread = new Thread(() -> serve(socket), "loopback-upstream-" + address);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException ex) {
+            stop();
+            throw ex;
+        }
+    }
+
+    /** Closes the servers.
+     */
+    public void stop() {
+        sockets.forEach(DatagramSocket::close);
+        delayedReplies.shutdownNow();
+    }
+
+    /**
+     * @return The address of the stand-in root server.
+     */
+    public InetAddress getRootServer() {
+        try {
+            return InetAddress.getByName(ROOT_ADDRESS);
+        } catch (UnknownHostException ex) {
+            throw new IllegalStateException(ex); // not expected for a literal address
+        }
+    }
+
+    private void serve(DatagramSocket socket) {
+        byte[] buffer = new byte[512];
+        String address = socket.getLocalAddress().getHostAddress();
+        while (!socket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (IOException ex) {
+                continue; // socket closed, or a transient error
+            }
+            byte[] response;
+            try {
+                DNSResolverServer.ClientQuery query =
+                        DNSResolverServer.parseQuery(Arrays.copyOf(packet.getData(), packet.getLength()));
+                if (query == null || query.node == null) continue;
+                response = answer(address, query);
+            } catch (UnknownHostException | IllegalArgumentException | IndexOutOfBoundsException
+                     | BufferUnderflowException ex) {
+                continue;
+            }
+            DatagramPacket reply = new DatagramPacket(response, response.length, packet.getSocketAddress());
+            if (delayMillis > 0) {
+                delayedReplies.schedule(() -> send(socket, reply), delayMillis, TimeUnit.MILLISECONDS);
+            } else {
+                send(socket, reply);
+            }
+        }
+    }
+
+    private static void send(DatagramSocket socket, DatagramPacket reply) {
+        try {
+            socket.send(reply);
+        } catch (IOException ignored) {}
+    }
+
+    /** Builds the response a server at one level of the hierarchy gives to a query.
+     *
+     * @param address Address of the server the query was sent to.
+     * @param query   The query being answered.
+     * @return The encoded response.
+     */
+    private byte[] answer(String address, DNSResolverServer.ClientQuery query) throws UnknownHostException {
+        String hostName = query.node.getHostName().toLowerCase();
+        RecordType type = query.node.getType();
+        String[] labels = hostName.split("\\.");
+        List<ResourceRecord> answers = new ArrayList<>();
+        List<ResourceRecord> nameservers = new ArrayList<>();
+        List<ResourceRecord> additional = new ArrayList<>();
+        boolean authoritative = true;
+        int responseCode = 0;
+
+        if (address.equals(ROOT_ADDRESS)) {
+            authoritative = false;
+            String tld = labels[labels.length - 1];
+            String nameServer = "ns.nic." + tld;
+            nameservers.add(new ResourceRecord(tld, RecordType.NS, ttl, nameServer));
+            additional.add(new ResourceRecord(nameServer, RecordType.A, ttl, InetAddress.getByName(TLD_ADDRESS)));
+        } else if (address.equals(TLD_ADDRESS) && labels.length >= 2) {
+            authoritative = false;
+            String domain = labels[labels.length - 2] + "." + labels[labels.length - 1];
+            String nameServer = "ns1." + domain;
+            nameservers.add(new ResourceRecord(domain, RecordType.NS, ttl, nameServer));
+            additional.add(new ResourceRecord(nameServer, RecordType.A, ttl, InetAddress.getByName(AUTHORITATIVE_ADDRESS)));
+        } else if (address.equals(AUTHORITATIVE_ADDRESS) && labels.length >= 2) {
+            String domain = labels[labels.length - 2] + "." + labels[labels.length - 1];
+            if (labels[0].startsWith("nx")) {
+                responseCode = 3;
+            } else if (labels[0].startsWith("alias") && labels.length > 2) {
+                answers.add(new ResourceRecord(hostName, RecordType.CNAME, ttl, "www." + domain));
+            } else if (hostName.equals("ns1." + domain) && type == RecordType.A) {
+                answers.add(new ResourceRecord(hostName, type, ttl, InetAddress.getByName(AUTHORITATIVE_ADDRESS)));
+            } else if (hostName.equals(domain) && type == RecordType.NS) {
+                answers.add(new ResourceRecord(hostName, type, ttl, "ns1." + domain));
+            } else if (type == RecordType.A || type == RecordType.AAAA) {
+                answers.add(new ResourceRecord(hostName, type, ttl, syntheticAddress(hostName, type)));
+            }
+        }
+
+        int flags = 0x8000 | (query.flags & 0x0100) | (authoritative ? 0x0400 : 0) | responseCode;
+        return DNSQueryHandler.encodeResponse(query.id, flags, query.question, answers, nameservers, additional);
+    }
+
+    /** Derives a stable address for a host name, in 10.0.0.0/8 for A records and in fd00::/8
+     * for AAAA records.
+     */
+    private static InetAddress syntheticAddress(String hostName, RecordType type) throws UnknownHostException {
+        int hash = hostName.hashCode();
+        byte[] address = new byte[type == RecordType.A ? 4 : 16];
+        address[0] = (byte) (type == RecordType.A ? 10 : 0xfd);
+        for (int i = 1; i < 4; i++) {
+            address[address.length - i] = (byte) (hash >>> (8 * (i - 1)));
+        }
+        return InetAddress.getByAddress(address);
+    }
+}
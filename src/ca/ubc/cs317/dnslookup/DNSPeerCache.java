@@ -0,0 +1,270 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/** An optional tier of caches shared between sibling resolver processes. Each query (DNS node) is
+ * owned by one member of the group, chosen by consistent hashing over the members' addresses, so
+ * every member agrees on the owner and only a small share of nodes move when a member is added or
+ * removed. On a local cache miss, a member asks the owner of the node for its cached answer before
+ * resolving the node itself. A member never resolves on behalf of another: it answers only from
+ * its own cache.
+ *
+ * Peers talk over UDP using standard DNS messages: a request is an ordinary query for the node,
+ * and the answer section of the response holds the cached records (following CNAMEs), each with
+ * its remaining TTL, or nothing on a miss. Several members can run on the loopback interface by
+ * giving each its own port, for example -peer 127.0.0.1:7001 -peers 127.0.0.1:7002,127.0.0.1:7003.
+ */
+public class DNSPeerCache {
+
+    private static final int VIRTUAL_NODES = 100; // points on the ring for each member
+    private static final int PEER_TIMEOUT = 250; // milliseconds
+    private static final long PEER_HOLD_DOWN = 10000; // milliseconds a peer is skipped after a timeout
+    private static final int MAX_MESSAGE = 4096;
+    private static final int MAX_CNAME_CHAIN = 10;
+
+    private final Peer self;
+    private final List<Peer> peers = new ArrayList<>();
+    private final Set<InetAddress> peerAddresses = new HashSet<>(); // requests from elsewhere are ignored
+    private final TreeMap<Long, Peer> ring = new TreeMap<>();
+    private final DNSCache cache = DNSCache.getInstance();
+    private DatagramSocket socket;
+
+    /** A member of the group, with counts of how its cache has been used.
+     */
+    private static class Peer {
+        final InetSocketAddress address;
+        volatile long downUntil = 0;
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong timeouts = new AtomicLong();
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        String name() {
+            return address.getAddress().getHostAddress() + ":" + address.getPort();
+        }
+    }
+
+    /** Creates a member of a peer cache group. The member does not answer its peers until it is
+     * started.
+     *
+     * @param self     Address this member listens on, as the other members know it.
+     * @param siblings Addresses of the other members of the group. The address of this member
+     *                 may be included, so every member can be given the same list.
+     */
+    public DNSPeerCache(InetSocketAddress self, Collection<InetSocketAddress> siblings) {
+        this.self = new Peer(self);
+        addToRing(this.self);
+        Set<String> names = new HashSet<>(Collections.singleton(this.self.name()));
+        for (InetSocketAddress address : siblings) {
+            Peer peer = new Peer(address);
+            if (names.add(peer.name())) {
+                peers.add(peer);
+                peerAddresses.add(address.getAddress());
+                addToRing(peer);
+            }
+        }
+    }
+
+    /** Parses a member address in host:port form.
+     *
+     * @param hostAndPort Address to parse.
+     * @return The resolved address.
+     * @throws IllegalArgumentException if the address is not in host:port form or the host is unknown.
+     */
+    public static InetSocketAddress parseAddress(String hostAndPort) {
+        int separator = hostAndPort.lastIndexOf(':');
+        if (separator <= 0)
+            throw new IllegalArgumentException("Expected host:port, got " + hostAndPort);
+        try {
+            return new InetSocketAddress(InetAddress.getByName(hostAndPort.substring(0, separator)),
+                    Integer.parseInt(hostAndPort.substring(separator + 1)));
+        } catch (UnknownHostException | NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid peer address " + hostAndPort);
+        }
+    }
+
+    /** Binds the socket this member listens on and starts answering its peers on a background thread.
+     *
+     * @throws IOException if the socket could not be bound.
+     */
+    public void start() throws IOException {
+        socket = new DatagramSocket(self.address);
+        Thread thread = new Thread(this::serve, "peer-cache");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Closes the socket this member listens on.
+     */
+    public void stop() {
+        socket.close();
+    }
+
+    /** Asks the member that owns a node for its cached answer, and adds the records received to
+     * the local cache. Nothing is sent if this member owns the node, or if the owner recently
+     * failed to respond. This blocks until the owner responds or times out; see fetchAsync.
+     *
+     * @param node Host name and record type of the query.
+     * @return true if the owner had the answer (which is now cached locally), false otherwise.
+     */
+    public boolean fetch(DNSNode node) {
+        return fetchAsync(node).join();
+    }
+
+    /** Asks the member that owns a node for its cached answer, as fetch, without blocking the
+     * calling thread. The request is sent through DNSQueryHandler, so waiting for the owner holds
+     * no thread. Only the records that answer the node are cached: the CNAME chain starting at its
+     * host name, and the records of its type for the name the chain ends at. Any other record in
+     * the response is ignored.
+     *
+     * @param node Host name and record type of the query.
+     * @return A future completed with true if the owner had the answer (which is then cached
+     * locally), or with false otherwise.
+     */
+    public CompletableFuture<Boolean> fetchAsync(DNSNode node) {
+        Peer owner = ownerOf(node);
+        if (owner == self || owner.downUntil > System.currentTimeMillis())
+            return CompletableFuture.completedFuture(false);
+
+        return DNSQueryHandler.sendQueryAsync(owner.address, node, PEER_TIMEOUT).handle((response, ex) -> {
+            if (ex != null) return false;
+            if (response == null) {
+                owner.timeouts.incrementAndGet();
+                owner.downUntil = System.currentTimeMillis() + PEER_HOLD_DOWN;
+                return false;
+            }
+            List<ResourceRecord> answers = new ArrayList<>();
+            try {
+                new DNSResponseParser(response.getResponse()).parse(new DNSResponseParser.Visitor() {
+                    @Override
+                    public boolean enterSection(DNSResponseParser.Section section, int count) {
+                        return section == DNSResponseParser.Section.ANSWER;
+                    }
+
+                    @Override
+                    public void visitRecord(DNSResponseParser.Section section, ResourceRecord record) {
+                        answers.add(record);
+                    }
+                });
+            } catch (IllegalArgumentException | IndexOutOfBoundsException ignored) {
+                return false;
+            }
+            cacheAnswer(node, answers);
+
+            if (cache.getCachedAnswer(node).isEmpty()) {
+                owner.misses.incrementAndGet();
+                return false;
+            }
+            owner.hits.incrementAndGet();
+            return true;
+        });
+    }
+
+    /** Caches the records that answer a node, following the CNAME chain from its host name.
+     *
+     * @param node    Host name and record type of the query.
+     * @param answers Records from the answer section of the owner's response.
+     */
+    private void cacheAnswer(DNSNode node, List<ResourceRecord> answers) {
+        String hostName = node.getHostName();
+        for (int level = 0; level <= MAX_CNAME_CHAIN; level++) {
+            ResourceRecord cName = null;
+            boolean found = false;
+            for (ResourceRecord record : answers) {
+                if (!record.getHostName().equalsIgnoreCase(hostName)) continue;
+                if (record.getType() == node.getType()) {
+                    cache.addResult(record);
+                    found = true;
+                } else if (record.getType() == RecordType.CNAME && cName == null) {
+                    cName = record;
+                }
+            }
+            if (found || cName == null) return;
+            cache.addResult(cName);
+            hostName = cName.getTextResult();
+        }
+    }
+
+    /** Perform a specific action for each member of the group, this one first. The action
+     * receives the member address and a line describing its state and how often its cache was
+     * used: for this member, how many peer requests it answered with and without records; for
+     * the others, how many requests to them were hits, misses and timeouts.
+     *
+     * @param consumer Action to be performed for each member.
+     */
+    public void forEachPeer(BiConsumer<String, String> consumer) {
+        consumer.accept(self.name(), String.format("%-6s %-8d %-8d %s", "self", self.hits.get(), self.misses.get(), "-"));
+        for (Peer peer : peers) {
+            String state = peer.downUntil > System.currentTimeMillis() ? "down" : "up";
+            consumer.accept(peer.name(), String.format("%-6s %-8d %-8d %d", state, peer.hits.get(),
+                    peer.misses.get(), peer.timeouts.get()));
+        }
+    }
+
+    /** Answers peer requests from the local cache until the socket is closed. Requests from
+     * addresses that are not those of other members are ignored.
+     */
+    private void serve() {
+        byte[] buffer = new byte[MAX_MESSAGE];
+        while (!socket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+                if (!peerAddresses.contains(packet.getAddress())) continue;
+                DNSResolverServer.ClientQuery query =
+                        DNSResolverServer.parseQuery(Arrays.copyOf(packet.getData(), packet.getLength()));
+                if (query == null || query.node == null) continue;
+
+                List<ResourceRecord> answers = cache.getCachedAnswer(query.node);
+                byte[] response = DNSQueryHandler.encodeResponse(query.id, 0x8000, query.question, answers,
+                        Collections.emptyList(), Collections.emptyList());
+                if (response.length > MAX_MESSAGE) {
+                    answers = Collections.emptyList();
+                    response = DNSQueryHandler.encodeResponse(query.id, 0x8000, query.question, answers,
+                            Collections.emptyList(), Collections.emptyList());
+                }
+                (answers.isEmpty() ? self.misses : self.hits).incrementAndGet();
+                socket.send(new DatagramPacket(response, response.length, packet.getSocketAddress()));
+            } catch (IOException | IllegalArgumentException | IndexOutOfBoundsException | BufferUnderflowException ignored) {
+                // socket closed, or a malformed request
+            }
+        }
+    }
+
+    /** Finds the member that owns a node: the first point on the ring at or after the hash of the node.
+     */
+    private Peer ownerOf(DNSNode node) {
+        Map.Entry<Long, Peer> entry = ring.ceilingEntry(hash(node.getHostName().toLowerCase() + "/" + node.getType()));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    private void addToRing(Peer peer) {
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            ring.put(hash(peer.name() + "#" + i), peer);
+        }
+    }
+
+    /** Hashes a key to a point on the ring, using the first 8 bytes of its MD5 digest.
+     */
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex); // every Java platform supports MD5
+        }
+    }
+}
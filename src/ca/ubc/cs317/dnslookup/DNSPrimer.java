@@ -0,0 +1,161 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Warms up the DNS cache at startup, before the resolver accepts queries. Priming has two
+ * optional inputs:
+ * <ul>
+ *     <li>a root hints file, in the format of the standard named.root file, whose NS, A and AAAA
+ *     records for the root zone and root servers are added to the cache as they are;</li>
+ *     <li>a priming list of hot names, one per line as a host name optionally followed by a record
+ *     type. The type defaults to NS for single-label names (top-level domains), so the delegation
+ *     to their servers is cached, and to A for other names.</li>
+ * </ul>
+ * The names in the priming list are resolved in parallel. Priming waits at most a fixed time for
+ * them, so startup cost stays bounded; lookups still running then are left to complete in the
+ * background. Once priming is over, a timing report is printed. Priming runs before the resolver
+ * reads commands or accepts queries, so nothing is resolved from a cold cache that priming would
+ * have warmed up.
+ */
+public class DNSPrimer {
+
+    private static final int PRIME_THREADS = 16;
+    private static final long PRIME_TIMEOUT = 10000; // milliseconds
+
+    private static final DNSCache cache = DNSCache.getInstance();
+
+    /** Primes the cache from a root hints file and a priming list, returning once priming is over.
+     * Either file may be omitted; with neither, nothing is done and nothing is printed.
+     *
+     * @param hintsFile Name of the root hints file, or null.
+     * @param primeFile Name of the priming list, or null.
+     * @throws IOException if either file could not be read.
+     * @throws IllegalArgumentException if a line in either file is malformed.
+     */
+    public static void prime(String hintsFile, String primeFile) throws IOException {
+        if (hintsFile == null && primeFile == null) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        int hints = hintsFile != null ? loadRootHints(hintsFile) : 0;
+        List<DNSNode> nodes = primeFile != null ? readPrimingList(primeFile) : Collections.emptyList();
+        long hintsLoaded = System.nanoTime();
+
+        ExecutorService primers = Executors.newFixedThreadPool(PRIME_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "primer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger resolved = new AtomicInteger();
+        for (DNSNode node : nodes) {
+            primers.execute(() -> {
+                if (!DNSLookupService.getResults(node).isEmpty())
+                    resolved.incrementAndGet();
+            });
+        }
+        primers.shutdown();
+        boolean complete;
+        try {
+            complete = primers.awaitTermination(PRIME_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            complete = false;
+        }
+        long end = System.nanoTime();
+
+        if (hintsFile != null)
+            System.out.printf("Loaded %d root hints in %.1f ms\n", hints, (hintsLoaded - start) / 1e6);
+        if (primeFile != null)
+            System.out.printf("Primed %d of %d names in %.1f ms%s\n", resolved.get(), nodes.size(),
+                    (end - hintsLoaded) / 1e6, complete ? "" : " (stopped waiting; the rest continue in the background)");
+        System.out.printf("Ready after %.1f ms\n", (end - start) / 1e6);
+    }
+
+    /** Reads a root hints file and adds its NS, A and AAAA records to the cache. Each line holds a
+     * record as owner name, optional TTL, optional class, type and data; anything after a ';' is a
+     * comment, and records of other types are ignored.
+     *
+     * @param hintsFile Name of the root hints file.
+     * @return The number of records added to the cache.
+     * @throws IOException if the file could not be read.
+     * @throws IllegalArgumentException if a line is malformed.
+     */
+    private static int loadRootHints(String hintsFile) throws IOException {
+        int count = 0;
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(Paths.get(hintsFile))) {
+            lineNumber++;
+            line = line.split(";", 2)[0].trim();
+            if (line.isEmpty()) continue;
+            String[] fields = line.split("\\s+");
+            int field = 1;
+            long ttl = 3600000;
+            if (fields.length > field && fields[field].matches("\\d+"))
+                ttl = Long.parseLong(fields[field++]);
+            if (fields.length > field && fields[field].equalsIgnoreCase("IN"))
+                field++;
+            if (fields.length != field + 2)
+                throw new IllegalArgumentException(hintsFile + " line " + lineNumber + ": expected name [ttl] [class] type data");
+
+            String name = absoluteName(fields[0]);
+            String type = fields[field].toUpperCase();
+            String data = fields[field + 1];
+            try {
+                if (type.equals("NS"))
+                    cache.addResult(new ResourceRecord(name, RecordType.NS, ttl, absoluteName(data)));
+                else if (type.equals("A") || type.equals("AAAA"))
+                    cache.addResult(new ResourceRecord(name, RecordType.valueOf(type), ttl, InetAddress.getByName(data)));
+                else
+                    continue;
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException(hintsFile + " line " + lineNumber + ": invalid address " + data);
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /** Reads a priming list.
+     *
+     * @param primeFile Name of the priming list.
+     * @return The queries in the list.
+     * @throws IOException if the file could not be read.
+     * @throws IllegalArgumentException if a line has an unknown record type or too many fields.
+     */
+    private static List<DNSNode> readPrimingList(String primeFile) throws IOException {
+        List<DNSNode> nodes = new ArrayList<>();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(Paths.get(primeFile))) {
+            lineNumber++;
+            line = line.split("#", 2)[0].trim();
+            if (line.isEmpty()) continue;
+            String[] fields = line.split("\\s+");
+            if (fields.length > 2)
+                throw new IllegalArgumentException(primeFile + " line " + lineNumber + ": expected hostName [type]");
+            String name = absoluteName(fields[0]);
+            try {
+                RecordType type = fields.length == 2 ? RecordType.valueOf(fields[1].toUpperCase())
+                        : name.contains(".") ? RecordType.A : RecordType.NS;
+                nodes.add(new DNSNode(name, type));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(primeFile + " line " + lineNumber + ": invalid query type " + fields[1]);
+            }
+        }
+        return nodes;
+    }
+
+    /** Converts a name as written in a zone file to the form used in the cache, without the
+     * trailing dot; the root zone "." becomes the empty name.
+     */
+    private static String absoluteName(String name) {
+        return name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+    }
+}
@@ -3,65 +3,475 @@ package ca.ubc.cs317.dnslookup;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class DNSQueryHandler {
 
     private static final int DEFAULT_DNS_PORT = 53;
-    private static DatagramSocket socket;
-    private static boolean verboseTracing = false;
-
-    private static final Random random = new Random();
-
-    private static int decodeCounter = 0;
+    private static final int SOCKET_TIMEOUT = 5000; // milliseconds
+    private static final int MAX_NAME_POINTERS = 64;
+    private static final int MAX_NAME_LENGTH = 255; // octets, in wire format
+    private static final int MAX_RESPONSE = 4096; // octets; room for the larger answers of peer resolvers
+    private static volatile boolean verboseTracing = false;
+    private static volatile int serverPort = DEFAULT_DNS_PORT;
+
+    private static final int SOCKET_POOL_SIZE = 8;
+    private static final int SOCKET_MAX_QUERIES = 1000; // queries sent from one port before it is replaced
+    private static final int MAX_ID_ATTEMPTS = 16;
+
+    private static final SecureRandom random = new SecureRandom();
+    private static final AtomicLong queriesSent = new AtomicLong();
+    private static final Map<PendingKey, PendingQuery> pendingQueries = new ConcurrentHashMap<>();
+    private static final QuerySocket[] socketPool = new QuerySocket[SOCKET_POOL_SIZE];
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "dns-query-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ExecutorService responseHandlers = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread thread = new Thread(runnable, "dns-response-handler");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    static {
+        timer.setRemoveOnCancelPolicy(true); // see LookupDeadline
+    }
 
     /**
-     * Sets up the socket and set the timeout to 5 seconds
-     *
-     * @throws SocketException if the socket could not be opened, or if there was an
-     *                         error with the underlying protocol
+     * Set verboseTracing to tracing
      */
-    public static void openSocket() throws SocketException {
-        socket = new DatagramSocket();
-        socket.setSoTimeout(5000);
+    public static void setVerboseTracing(boolean tracing) {
+        verboseTracing = tracing;
     }
 
     /**
-     * Closes the socket
+     * Set the port queries are sent to. Defaults to the standard DNS port, 53; another port is
+     * mostly useful to query a stand-in server on the loopback interface.
      */
-    public static void closeSocket() {
-        socket.close();
+    public static void setServerPort(int port) {
+        serverPort = port;
     }
 
     /**
-     * Set verboseTracing to tracing
+     * @return The number of query packets sent to DNS servers so far, including retries.
      */
-    public static void setVerboseTracing(boolean tracing) {
-        verboseTracing = tracing;
+    public static long getQueriesSent() {
+        return queriesSent.get();
     }
 
 
     /**
-     * Builds the query, sends it to the server, and returns the response.
+     * Builds the query, sends it to the server, and returns the response. This blocks until the
+     * response arrives or the query times out; see sendQueryAsync.
      *
      * @param message Byte array used to store the query to DNS servers.
      * @param server  The IP address of the server to which the query is being sent.
      * @param node    Host and record type to be used for search.
-     * @return A DNSServerResponse Object containing the response buffer and the transaction ID.
-     * @throws IOException if an IO Exception occurs
+     * @return A DNSServerResponse Object containing the response buffer and the transaction ID,
+     * or null if the server did not respond.
+     * @throws IOException if an IO Exception occurs, including UpstreamLimiter.OverloadException
+     *                     if too many queries are already outstanding
      */
     public static DNSServerResponse buildAndSendQuery(byte[] message, InetAddress server,
                                                       DNSNode node) throws IOException {
-        String name = node.getHostName();
-        String[] nameParts = name.split("\\.");
+        try {
+            return sendQueryAsync(server, node).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Builds the query and sends it to the server without waiting for the response. Queries are
+     * sent from a small pool of sockets, each read by one background thread, so any number of
+     * queries may be outstanding without holding a thread each. Each query goes out from a
+     * randomly chosen socket of the pool, with a random transaction ID, and each socket is
+     * replaced by one on a new ephemeral port after a while, so the source port of a query is as
+     * hard to guess as its ID. A response is only accepted from the address and port the query
+     * was sent to, on the socket it was sent from, with the same ID and the same question.
+     * A query that is not answered in time is sent once more. The number of queries outstanding
+     * at once is bounded by the UpstreamLimiter.
+     *
+     * Cancelling the returned future abandons the query: a late response is then ignored.
+     *
+     * @param server The IP address of the server to which the query is being sent.
+     * @param node   Host and record type to be used for search.
+     * @return A future completed with the response, or with null if both attempts timed out. It
+     * is completed exceptionally with an IOException if the query could not be sent, including
+     * UpstreamLimiter.OverloadException if too many queries are already outstanding.
+     */
+    public static CompletableFuture<DNSServerResponse> sendQueryAsync(InetAddress server, DNSNode node) {
+        return sendQueryAsync(server, node, Long.MAX_VALUE);
+    }
+
+    /**
+     * Builds the query and sends it to the server without waiting for the response, as
+     * sendQueryAsync(InetAddress, DNSNode), but giving up on the query at a deadline: each
+     * attempt waits at most until then, and no retry is sent after it.
+     *
+     * @param server   The IP address of the server to which the query is being sent.
+     * @param node     Host and record type to be used for search.
+     * @param deadline Time to give up at, as a System.nanoTime() value, or Long.MAX_VALUE for none.
+     * @return A future completed with the response, or with null if the query timed out.
+     */
+    public static CompletableFuture<DNSServerResponse> sendQueryAsync(InetAddress server, DNSNode node, long deadline) {
+        return sendQueryAsync(server, node, deadline, SOCKET_TIMEOUT, 2);
+    }
+
+    /**
+     * Builds the query and sends it to the server without waiting for the response, as
+     * sendQueryAsync(InetAddress, DNSNode, long), but only once and waiting for the response for
+     * a given time. This suits callers that have other servers to fail over to, which is better
+     * than sending the query to the same server again.
+     *
+     * @param server         The IP address of the server to which the query is being sent.
+     * @param node           Host and record type to be used for search.
+     * @param deadline       Time to give up at, as a System.nanoTime() value, or Long.MAX_VALUE for none.
+     * @param attemptTimeout Time to wait for the response, in milliseconds.
+     * @return A future completed with the response, or with null if the query timed out.
+     */
+    public static CompletableFuture<DNSServerResponse> sendQueryAsync(InetAddress server, DNSNode node,
+                                                                      long deadline, long attemptTimeout) {
+        return sendQueryAsync(server, node, deadline, attemptTimeout, 1);
+    }
+
+    private static CompletableFuture<DNSServerResponse> sendQueryAsync(InetAddress server, DNSNode node, long deadline,
+                                                                       long attemptTimeout, int maxAttempts) {
+        CompletableFuture<DNSServerResponse> result = new CompletableFuture<>();
+        UpstreamLimiter.getInstance().acquireAsync(server).whenComplete((permit, ex) -> {
+            if (ex != null) {
+                result.completeExceptionally(ex instanceof CompletionException ? ex.getCause() : ex);
+                return;
+            }
+            if (result.isDone()) { // abandoned while waiting for the permit
+                permit.release(false);
+                return;
+            }
+            startQuery(new PendingQuery(server, node, permit, result, deadline, attemptTimeout, maxAttempts), serverPort);
+        });
+        return result;
+    }
+
+    /**
+     * Sends a query to a server listening on a given port, such as a peer resolver, without
+     * waiting for the response. The query is sent once, from the same pool of sockets and matched
+     * as strictly as sendQueryAsync(InetAddress, DNSNode), but it is not subject to the
+     * UpstreamLimiter, nor counted with the queries sent to DNS servers, whose load the limits
+     * are there to bound.
+     *
+     * @param server         The address and port of the server to which the query is being sent.
+     * @param node           Host and record type to be used for search.
+     * @param attemptTimeout Time to wait for the response, in milliseconds.
+     * @return A future completed with the response, or with null if the query timed out. It is
+     * completed exceptionally with an IOException if the query could not be sent.
+     */
+    public static CompletableFuture<DNSServerResponse> sendQueryAsync(InetSocketAddress server, DNSNode node,
+                                                                      long attemptTimeout) {
+        CompletableFuture<DNSServerResponse> result = new CompletableFuture<>();
+        startQuery(new PendingQuery(server.getAddress(), node, null, result, Long.MAX_VALUE, attemptTimeout, 1),
+                server.getPort());
+        return result;
+    }
+
+    /**
+     * Picks a socket and transaction ID for a query and sends it, completing the query
+     * exceptionally if it cannot be sent.
+     *
+     * @param query The query, not sent yet.
+     * @param port  Port of the server the query is sent to.
+     */
+    private static void startQuery(PendingQuery query, int port) {
+        try {
+            QuerySocket socket = acquireSocket();
+            query.socket = socket;
+            for (int attempt = 0; query.key == null; attempt++) {
+                if (attempt == MAX_ID_ATTEMPTS)
+                    throw new IOException("No free transaction ID for queries to " + query.server.getHostAddress());
+                PendingKey key = new PendingKey(socket, query.server, port, random.nextInt(65536));
+                if (pendingQueries.putIfAbsent(key, query) == null) query.key = key;
+            }
+            query.queryID = query.key.queryID;
+            byte[] message = encodeQuery(query.queryID, query.node);
+            query.packet = new DatagramPacket(message, message.length, query.server, port);
+            query.response.whenComplete((response, cancelled) -> {
+                if (query.response.isCancelled()) finishQuery(query, null);
+            });
+            send(query);
+        } catch (IOException e) {
+            if (!finishQuery(query, null) && query.permit != null) query.permit.release(false);
+            query.response.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * A socket of the pool queries are sent from, with the thread reading its responses.
+     */
+    private static class QuerySocket {
+        final DatagramSocket socket;
+        int queriesSent = 0; // guarded by the socket pool
+        boolean retired = false; // guarded by the socket pool; set once replaced
+        final AtomicInteger outstanding = new AtomicInteger();
+
+        QuerySocket() throws SocketException {
+            this.socket = new DatagramSocket(); // bound to an ephemeral port chosen by the system
+        }
+
+        /**
+         * Closes the socket once it has been replaced and has no query left outstanding.
+         */
+        void closeIfDone() {
+            boolean done;
+            synchronized (socketPool) {
+                done = retired && outstanding.get() == 0;
+            }
+            if (done) socket.close();
+        }
+    }
+
+    /**
+     * What a response must match to be accepted for a query: the socket the query was sent from,
+     * the server address and port it was sent to, and its transaction ID.
+     */
+    private static final class PendingKey {
+        final QuerySocket socket;
+        final InetAddress server;
+        final int port;
+        final int queryID;
+
+        PendingKey(QuerySocket socket, InetAddress server, int port, int queryID) {
+            this.socket = socket;
+            this.server = server;
+            this.port = port;
+            this.queryID = queryID;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PendingKey)) return false;
+            PendingKey other = (PendingKey) o;
+            return socket == other.socket && port == other.port && queryID == other.queryID
+                    && server.equals(other.server);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(socket), server, port, queryID);
+        }
+    }
+
+    /**
+     * A query sent from a socket of the pool that has not been answered yet.
+     */
+    private static class PendingQuery {
+        final InetAddress server;
+        final DNSNode node;
+        final UpstreamLimiter.Permit permit; // null for queries the limits do not apply to
+        final CompletableFuture<DNSServerResponse> response;
+        final long deadline;
+        final long maxWait; // milliseconds each attempt waits for, unless cut short by the deadline
+        final int maxAttempts;
+        QuerySocket socket;
+        PendingKey key;
+        int queryID;
+        DatagramPacket packet;
+        int attempts = 0;
+        long waited; // milliseconds the current attempt waits for
+        ScheduledFuture<?> timeout;
+
+        PendingQuery(InetAddress server, DNSNode node, UpstreamLimiter.Permit permit,
+                     CompletableFuture<DNSServerResponse> response, long deadline, long maxWait, int maxAttempts) {
+            this.server = server;
+            this.node = node;
+            this.permit = permit;
+            this.response = response;
+            this.deadline = deadline;
+            this.maxWait = maxWait;
+            this.maxAttempts = maxAttempts;
+        }
+
+        /**
+         * @return How long to wait for a response to the next attempt, in milliseconds, or 0 if
+         * the deadline has passed.
+         */
+        long attemptTimeout() {
+            if (deadline == Long.MAX_VALUE) return maxWait;
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            return Math.max(0, Math.min(maxWait, remaining));
+        }
+    }
+
+    /**
+     * Sends (or resends) a query and schedules its timeout.
+     */
+    private static void send(PendingQuery query) throws IOException {
+        synchronized (query) {
+            query.attempts++;
+            query.waited = query.attemptTimeout();
+            query.timeout = timer.schedule(() -> timeOut(query), query.waited, TimeUnit.MILLISECONDS);
+        }
+        // Verbose Printing
+        if (verboseTracing) {
+            System.out.println("");
+            System.out.println("");
+            System.out.println("Query ID     " + query.queryID + " " + query.node.getHostName() + "  " + query.node.getType().name() + " --> " + query.server.getHostAddress());
+        }
+        query.socket.socket.send(query.packet);
+        if (query.permit != null) {
+            queriesSent.incrementAndGet();
+            QueryStatistics.getInstance().recordUpstreamQuery(query.server);
+        }
+    }
+
+    /**
+     * Called when a query has not been answered in time: the query is sent again until it has
+     * been sent as many times as allowed, and given up after that or once its deadline has passed.
+     */
+    private static void timeOut(PendingQuery query) {
+        if (pendingQueries.get(query.key) != query) return;
+        boolean retry;
+        synchronized (query) {
+            // an attempt cut short by the deadline says nothing about the server
+            if (query.waited == query.maxWait && query.permit != null) query.permit.recordTimeout();
+            retry = query.attempts < query.maxAttempts && query.attemptTimeout() > 0;
+        }
+        try {
+            if (retry) {
+                send(query);
+                return;
+            }
+        } catch (IOException ignored) {}
+        finishQuery(query, null);
+    }
+
+    /**
+     * Removes a query from the pending queries, releases its permit and completes it, unless
+     * this was already done.
+     *
+     * @param query    The query.
+     * @param response Its response, or null if it was not answered.
+     * @return true if the query was still pending.
+     */
+    private static boolean finishQuery(PendingQuery query, DNSServerResponse response) {
+        if (query.key == null) {
+            if (query.socket != null) releaseSocket(query.socket); // no ID could be given to it
+            return false;
+        }
+        if (!pendingQueries.remove(query.key, query)) return false;
+        synchronized (query) {
+            if (query.timeout != null) query.timeout.cancel(false);
+        }
+        releaseSocket(query.socket);
+        if (query.permit != null) query.permit.release(response != null);
+        // continuations of the query run on the worker pool, not on the receiving thread
+        responseHandlers.execute(() -> query.response.complete(response));
+        return true;
+    }
+
+    /**
+     * Picks a socket of the pool at random for a new query. A socket that has sent its share of
+     * queries is replaced by a new one, on a new ephemeral port; the old one is kept open only
+     * until the queries sent from it are answered or time out.
+     */
+    private static QuerySocket acquireSocket() throws SocketException {
+        int slot = random.nextInt(SOCKET_POOL_SIZE);
+        synchronized (socketPool) {
+            QuerySocket socket = socketPool[slot];
+            if (socket == null || socket.queriesSent >= SOCKET_MAX_QUERIES) {
+                QuerySocket replacement = new QuerySocket();
+                Thread receiver = new Thread(() -> receiveResponses(replacement), "dns-query-receiver");
+                receiver.setDaemon(true);
+                receiver.start();
+                if (socket != null) {
+                    socket.retired = true;
+                    if (socket.outstanding.get() == 0) socket.socket.close();
+                }
+                socketPool[slot] = socket = replacement;
+            }
+            socket.queriesSent++;
+            socket.outstanding.incrementAndGet();
+            return socket;
+        }
+    }
+
+    /**
+     * Called once a query sent from a socket is over.
+     */
+    private static void releaseSocket(QuerySocket socket) {
+        socket.outstanding.decrementAndGet();
+        socket.closeIfDone();
+    }
+
+    /**
+     * Reads responses from a socket of the pool and completes the queries they answer, until the
+     * socket is closed. Responses that do not match a pending query sent from this socket, by
+     * server address and port, transaction ID and question, are dropped.
+     */
+    private static void receiveResponses(QuerySocket querySocket) {
+        DatagramSocket socket = querySocket.socket;
+        byte[] responseData = new byte[MAX_RESPONSE];
+        DatagramPacket udpPacketReceive = new DatagramPacket(responseData, responseData.length);
+        while (!socket.isClosed()) {
+            try {
+                udpPacketReceive.setLength(responseData.length);
+                socket.receive(udpPacketReceive);
+            } catch (IOException e) {
+                continue;
+            }
+            if (udpPacketReceive.getLength() < 2) continue;
+            int queryID = Short.toUnsignedInt(ByteBuffer.wrap(responseData).getShort(0));
+            PendingQuery query = pendingQueries.get(new PendingKey(querySocket, udpPacketReceive.getAddress(),
+                    udpPacketReceive.getPort(), queryID));
+            if (query == null || !echoesQuestion(responseData, udpPacketReceive.getLength(), query.packet.getData()))
+                continue;
+            byte[] response = Arrays.copyOf(responseData, udpPacketReceive.getLength());
+            finishQuery(query, new DNSServerResponse(ByteBuffer.wrap(response), queryID));
+        }
+    }
+
+    /**
+     * Checks that a response repeats the question of the query it claims to answer. Names are
+     * compared without regard to case, as servers need not preserve it.
+     *
+     * @param response Buffer holding the response.
+     * @param length   Length of the response.
+     * @param query    The encoded query, with a single question.
+     * @return true if the response has the same single question as the query.
+     */
+    private static boolean echoesQuestion(byte[] response, int length, byte[] query) {
+        if (length < query.length || response[4] != 0 || response[5] != 1) return false; // QDCOUNT 1
+        for (int i = 12; i < query.length; i++) {
+            byte expected = query[i], actual = response[i];
+            if (expected != actual && Character.toLowerCase((char) (expected & 0xFF))
+                    != Character.toLowerCase((char) (actual & 0xFF))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Encodes an iterative query (recursion not desired) with a single question.
+     *
+     * @param queryID Transaction ID of the query.
+     * @param node    Host and record type to be used for search.
+     * @return The encoded query.
+     * @throws IOException if an IO Exception occurs
+     */
+    public static byte[] encodeQuery(int queryID, DNSNode node) throws IOException {
         ByteArrayOutputStream nameBytesOutputStream = new ByteArrayOutputStream();
         DataOutputStream nameDataOutputStream = new DataOutputStream(nameBytesOutputStream);
 
         // QUERY ID SECTION:
-        int queryID = random.nextInt(65535);
         nameDataOutputStream.writeShort(queryID);
 
         // QR | OPCODE | AA section and response code sections:
@@ -88,14 +498,7 @@ public class DNSQueryHandler {
         nameDataOutputStream.writeShort(arCount);
 
         // QNAME:
-        // Converts an ASCII domain like www.cs.ubc.ca to byte representation
-        // source for byte writing: https://levelup.gitconnected.com/dns-request-and-response-in-java-acbd51ad3467
-        for(int i = 0; i < nameParts.length; i++) {
-            byte[] domainBytes = nameParts[i].getBytes(StandardCharsets.UTF_8);
-            nameDataOutputStream.writeByte(domainBytes.length);
-            nameDataOutputStream.write(domainBytes);
-        }
-        nameDataOutputStream.writeByte(0); // 00 byte to end the QNAME
+        encodeName(nameDataOutputStream, node.getHostName());
 
         // QTYPE:
         int qType = node.getType().getCode();
@@ -105,74 +508,119 @@ public class DNSQueryHandler {
         int qClass = 1; // 1 for IN or Internet
         nameDataOutputStream.writeShort(qClass);
 
-        message = nameBytesOutputStream.toByteArray();
-
-        DatagramPacket udpPacketSend = new DatagramPacket(message, message.length, server, DEFAULT_DNS_PORT);
-        socket.send(udpPacketSend);
+        return nameBytesOutputStream.toByteArray();
+    }
 
-        // Verbose Printing
-        if (verboseTracing) {
-            System.out.println("");
-            System.out.println("");
-            System.out.println("Query ID     " + queryID + " " + name + "  " + node.getType().name() + " --> " + server.getHostAddress());
+    /**
+     * Helper method that writes a host name as a sequence of uncompressed labels, ending with the
+     * zero-length root label.
+     *
+     * @param out  Stream the encoded name is written to.
+     * @param name Host name to encode, like www.cs.ubc.ca.
+     * @throws IOException if an IO Exception occurs
+     */
+    public static void encodeName(DataOutputStream out, String name) throws IOException {
+        // Converts an ASCII domain like www.cs.ubc.ca to byte representation
+        // source for byte writing: https://levelup.gitconnected.com/dns-request-and-response-in-java-acbd51ad3467
+        for (String namePart : name.split("\\.")) {
+            if (namePart.isEmpty()) continue;
+            byte[] domainBytes = namePart.getBytes(StandardCharsets.UTF_8);
+            out.writeByte(domainBytes.length);
+            out.write(domainBytes);
         }
+        out.writeByte(0); // 00 byte to end the name
+    }
 
-        byte[] responseData = new byte[1024];
-        DatagramPacket udpPacketReceive = new DatagramPacket(responseData, responseData.length, server, DEFAULT_DNS_PORT);
-
-        // source: https://stackoverflow.com/questions/10556829/sending-and-receiving-udp-packets
-        while (true) {
-            try {
-                socket.receive(udpPacketReceive);
-                return new DNSServerResponse(ByteBuffer.wrap(udpPacketReceive.getData()), queryID);
-            }
-            catch (SocketTimeoutException e) {
-                // Time out after 5 seconds
-                // Send and receive again on first time out
-                socket.send(udpPacketSend);
-                if (verboseTracing) {
-                    System.out.println("");
-                    System.out.println("");
-                    System.out.println("Query ID     " + queryID + " " + name + "  " + node.getType().name() + " --> " + server.getHostAddress());
-                }
-                while (true) {
-                    try {
-                        socket.receive(udpPacketReceive);
-                        return new DNSServerResponse(ByteBuffer.wrap(udpPacketReceive.getData()), queryID);
-                    }
-                    catch (SocketTimeoutException e2) {
-                        // On second time out, print the record with a -1
-                        // TODO: Does this require return anything other than null here?
-                        return null;
+    /**
+     * Encodes a DNS response message. Names are written without compression.
+     *
+     * @param transactionID Transaction ID of the query being answered.
+     * @param flags         Header flags of the response, including QR, AA and RCODE.
+     * @param question      Question section of the query being answered, already encoded, or an
+     *                      empty array to leave the question out.
+     * @param answers       Records for the answer section.
+     * @param nameservers   Records for the authority section.
+     * @param additional    Records for the additional section.
+     * @return The encoded response.
+     */
+    public static byte[] encodeResponse(int transactionID, int flags, byte[] question,
+                                        List<ResourceRecord> answers, List<ResourceRecord> nameservers,
+                                        List<ResourceRecord> additional) {
+        ByteArrayOutputStream bytesOutputStream = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytesOutputStream);
+        try {
+            out.writeShort(transactionID);
+            out.writeShort(flags);
+            out.writeShort(question.length > 0 ? 1 : 0); // QDCOUNT
+            out.writeShort(answers.size()); // ANCOUNT
+            out.writeShort(nameservers.size()); // NSCOUNT
+            out.writeShort(additional.size()); // ARCOUNT
+            out.write(question);
+            for (List<ResourceRecord> section : Arrays.asList(answers, nameservers, additional)) {
+                for (ResourceRecord record : section) {
+                    encodeName(out, record.getHostName());
+                    out.writeShort(record.getType().getCode());
+                    out.writeShort(1); // class IN
+                    out.writeInt((int) Math.max(record.getTTL(), 0));
+                    if (record.getInetResult() != null) {
+                        byte[] address = record.getInetResult().getAddress();
+                        out.writeShort(address.length);
+                        out.write(address);
+                    } else {
+                        ByteArrayOutputStream rDataOutputStream = new ByteArrayOutputStream();
+                        encodeName(new DataOutputStream(rDataOutputStream), record.getTextResult());
+                        out.writeShort(rDataOutputStream.size());
+                        rDataOutputStream.writeTo(out);
                     }
                 }
             }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex); // not expected when writing to memory
         }
+        return bytesOutputStream.toByteArray();
     }
 
     /**
-     * Helper method that takes in a ByteBuffer containing the DNS response, and iterates through it decoding labels and pointers to retrieve names
+     * Helper method that takes in a ByteBuffer containing the DNS response, and iterates through it decoding labels and pointers to retrieve names.
+     * Decoding starts at the buffer's current position, which is left just after the name once it has been decoded.
+     *
+     * @throws IllegalArgumentException if the name is malformed: a reserved label type, too many
+     *                                  compression pointers, or longer than 255 octets.
      */
     public static String decodeName(ByteBuffer responseBuffer) {
 
         // Function to get the name / cname
-        byte[] buffer = responseBuffer.array();
         List<String> nameParts = new ArrayList<String>();
+        int decodeCounter = responseBuffer.position();
 
         boolean pointerEncountered = false;
         int restoreBuffPosAfterPointer = 0;
-
-        while (buffer[decodeCounter] != 0) {
-            // if the first two bits of the byte is 11 then we have a pointer, if 00 then label
-            if (((buffer[decodeCounter] >>> 6) & 3) == 3) {
+        int pointersFollowed = 0;
+        int nameLength = 1; // the root label
+
+        while (responseBuffer.get(decodeCounter) != 0) {
+            int lengthByte = Byte.toUnsignedInt(responseBuffer.get(decodeCounter));
+            // if the first two bits of the byte is 11 then we have a pointer, if 00 then label;
+            // 01 and 10 are reserved, and must not be read as a (negative) length
+            if ((lengthByte & 0xC0) == 0xC0) {
+                // a malformed message may contain a pointer loop, which would never end
+                if (++pointersFollowed > MAX_NAME_POINTERS) {
+                    throw new IllegalArgumentException("Too many compression pointers in name");
+                }
                 int offset = responseBuffer.getShort(decodeCounter) & 16383; // 16383 == 0011111111111111 in binary
                 if (pointerEncountered == false) {
                     pointerEncountered = true;
                     restoreBuffPosAfterPointer = decodeCounter + 1;
                 }
                 decodeCounter = offset;
+            } else if ((lengthByte & 0xC0) != 0) {
+                throw new IllegalArgumentException("Invalid label type in name");
             } else {
-                int length = responseBuffer.get(decodeCounter);
+                int length = lengthByte;
+                nameLength += length + 1;
+                if (nameLength > MAX_NAME_LENGTH) {
+                    throw new IllegalArgumentException("Name longer than " + MAX_NAME_LENGTH + " octets");
+                }
                 StringBuffer sb = new StringBuffer();
                 for (int i = decodeCounter + 1; i < decodeCounter + length + 1 ; i++) {
                     sb.append((char) responseBuffer.get(i));
@@ -184,7 +632,7 @@ public class DNSQueryHandler {
         if (pointerEncountered) {
             decodeCounter = restoreBuffPosAfterPointer;
         }
-        decodeCounter += 1; // SHOULD drop our decode counter to just after the name itself. Ready to parse more afterwards
+        responseBuffer.position(decodeCounter + 1); // Drop the buffer position to just after the name itself. Ready to parse more afterwards
         String name = String.join(".", nameParts);
         return name;
     }
@@ -199,147 +647,62 @@ public class DNSQueryHandler {
      */
     public static Set<ResourceRecord> decodeAndCacheResponse(int transactionID, ByteBuffer responseBuffer,
                                                              DNSCache cache) {
-        int serverTxID = Short.toUnsignedInt(responseBuffer.getShort(0)); // serverTxID from response should agree with transactionID from originating query
-        int flagBits = responseBuffer.get(2);
-        boolean isResponse = ((flagBits >>> 7) & 1) != 0;
-        boolean isAuthoritativeAns = ((flagBits >>> 2) & 1) != 0;
-        int responseCode = responseBuffer.get(3) & 15; // 0 if no error,  1 - 5 means errors
-        int qCount = Short.toUnsignedInt(responseBuffer.getShort(4));
-        int ansCount = Short.toUnsignedInt(responseBuffer.getShort(6));
-        int nsCount = Short.toUnsignedInt(responseBuffer.getShort(8));
-        int arCount = Short.toUnsignedInt(responseBuffer.getShort(10));
-
-        decodeCounter = 12; // Start counter after the header info
-
-        // Process query question section
-        for (int i = 0; i < qCount; i++) {
-            String queryName = decodeName(responseBuffer);
-            decodeCounter += 4; // Move past 4 bytes of irrelevant query data
-        }
+        return decodeAndCacheResponse(transactionID, responseBuffer, cache, "");
+    }
 
-        // Create a set to hold Answer, Authority,  and Additional Record
+    /**
+     * Decodes the DNS server response and caches the records it holds for names in the zone the
+     * server was queried for. Records for other names, which the server has no authority over,
+     * are neither cached nor returned; they are still traced.
+     *
+     * @param transactionID  Transaction ID of the current communication with the DNS server
+     * @param responseBuffer DNS server's response
+     * @param cache          To store the decoded server's response
+     * @param zone           Zone the server was queried for, or "" for the root
+     * @return A set of resource records corresponding to the name servers of the response.
+     */
+    public static Set<ResourceRecord> decodeAndCacheResponse(int transactionID, ByteBuffer responseBuffer,
+                                                             DNSCache cache, String zone) {
+        DNSResponseParser parser = new DNSResponseParser(responseBuffer);
         Set<ResourceRecord> nameServersResponse = new HashSet<ResourceRecord>();
+        DNSResponseParser.Visitor caching = DNSResponseParser.within(zone, DNSResponseParser.caching(cache));
+        DNSResponseParser.Visitor collecting = DNSResponseParser.within(zone,
+                DNSResponseParser.collecting(nameServersResponse, RecordType.NS));
 
-        boolean ansHeaderPrinted = false;
-        boolean nsHeaderPrinted = false;
-        boolean arHeaderPrinted = false;
-
-        // Verbose Printing Response Header
         if (verboseTracing) {
-            System.out.println("Response ID: " + String.valueOf(serverTxID) + " " + "Authoritative" + " = " + String.valueOf(isAuthoritativeAns));
-            if (ansCount == 0 && nsCount == 0 && arCount == 0) {
-                System.out.println("  Answers (0)");
-                System.out.println("  Nameservers (0)");
-                System.out.println("  Additional Information (0)");
-                ansHeaderPrinted = true;
-                nsHeaderPrinted = true;
-                arHeaderPrinted = true;
-            }
+            System.out.println("Response ID: " + parser.getTransactionID() + " " + "Authoritative" + " = " + parser.isAuthoritative());
+            parser.parse(caching, collecting, tracingVisitor);
+        } else {
+            parser.parse(caching, collecting);
         }
+        return nameServersResponse;
+    }
 
-        // Should now be in the Answers Section
-        // Create resource records for all the response
-        for (int j = 0; j < ansCount + nsCount + arCount; j++) {
-            if (verboseTracing) {
-                if (j == 0) {
-                    System.out.println("  Answers (" + String.valueOf(ansCount) + ")");
-                    ansHeaderPrinted = true;
-                }
-                if (j == ansCount) {
-                    System.out.println("  Nameservers (" + String.valueOf(nsCount) + ")");
-                    nsHeaderPrinted = true;
-                }
-                if (j == ansCount + nsCount) {
-                    System.out.println("  Additional Information (" + String.valueOf(arCount) + ")");
-                    arHeaderPrinted = true;
-                }
-            }
-
-            String ansName = decodeName(responseBuffer);
-            RecordType recordType = RecordType.getByCode(Short.toUnsignedInt(responseBuffer.getShort(decodeCounter)));
-            decodeCounter += 4; // move past type and class
-            int ttl = responseBuffer.getInt(decodeCounter);
-            decodeCounter += 4; // move past TTL
-            int rdLength = Short.toUnsignedInt(responseBuffer.getShort(decodeCounter));
-            decodeCounter += 2; // move past data length
-
-            switch (recordType) {
-                case A:
-                    byte[] ipv4AddressBytes = new byte[4];
-                    for (int i = 0; i < 4; i++) {
-                        ipv4AddressBytes[i] = responseBuffer.get(decodeCounter);
-                        decodeCounter++;
-                    }
-                    try {
-                        InetAddress ipv4Address = InetAddress.getByAddress(ipv4AddressBytes);
-                        ResourceRecord newRecord = new ResourceRecord(ansName, recordType, ttl, ipv4Address);
-                        cache.addResult(newRecord);
-                        verbosePrintResourceRecord(newRecord, newRecord.getType().getCode());
-                    } catch (UnknownHostException e) {
-                        System.err.println("Invalid IP Address (" + e.getMessage() + ").");
-                    }
-                    break;
-
-                case AAAA:
-                    byte[] ipv6AddressBytes = new byte[16];
-                    for (int i = 0; i < 16; i++) {
-                        ipv6AddressBytes[i] = responseBuffer.get(decodeCounter);
-                        decodeCounter++;
-                    }
-                    try {
-                        InetAddress ipv6Address = InetAddress.getByAddress(ipv6AddressBytes);
-                        ResourceRecord newRecord = new ResourceRecord(ansName, recordType, ttl, ipv6Address);
-                        cache.addResult(newRecord);
-                        verbosePrintResourceRecord(newRecord, newRecord.getType().getCode());
-                    } catch (UnknownHostException e) {
-                        System.err.println("Invalid IP Address (" + e.getMessage() + ").");
-                    }
-                    break;
-
-                case NS:
-                    String rData = decodeName(responseBuffer);
-                    ResourceRecord newRecord = new ResourceRecord(ansName, recordType, ttl, rData);
-                    cache.addResult(newRecord);
-                    nameServersResponse.add(newRecord);
-                    verbosePrintResourceRecord(newRecord, newRecord.getType().getCode());
-                    break;
-
-                case CNAME:
-                    String cNameData = decodeName(responseBuffer);
-                    ResourceRecord newCNameRecord = new ResourceRecord(ansName, recordType, ttl, cNameData);
-                    cache.addResult(newCNameRecord);
-                    verbosePrintResourceRecord(newCNameRecord, newCNameRecord.getType().getCode());
+    /**
+     * Prints the header of each section and the records in it (for when trace is on)
+     */
+    private static final DNSResponseParser.Visitor tracingVisitor = new DNSResponseParser.Visitor() {
+        @Override
+        public boolean enterSection(DNSResponseParser.Section section, int count) {
+            switch (section) {
+                case ANSWER:
+                    System.out.println("  Answers (" + count + ")");
                     break;
-
-                case SOA:
-                    String soaData = "----";
-                    ResourceRecord soaRecord = new ResourceRecord(ansName, recordType, ttl, soaData);
-                    verbosePrintResourceRecord(soaRecord, soaRecord.getType().getCode());
+                case AUTHORITY:
+                    System.out.println("  Nameservers (" + count + ")");
                     break;
-
-                default:
-                    decodeCounter += rdLength;
+                case ADDITIONAL:
+                    System.out.println("  Additional Information (" + count + ")");
                     break;
             }
+            return true;
         }
 
-        if (verboseTracing) {
-            if (!ansHeaderPrinted) {
-                System.out.println("  Answers (" + String.valueOf(ansCount) + ")");
-                ansHeaderPrinted = true;
-            }
-            if (!nsHeaderPrinted && ansHeaderPrinted) {
-                System.out.println("  Nameservers (" + String.valueOf(nsCount) + ")");
-                nsHeaderPrinted = true;
-            }
-            if (!arHeaderPrinted && nsHeaderPrinted && ansHeaderPrinted) {
-                System.out.println("  Additional Information (" + String.valueOf(arCount) + ")");
-                arHeaderPrinted = true;
-            }
+        @Override
+        public void visitRecord(DNSResponseParser.Section section, ResourceRecord record) {
+            verbosePrintResourceRecord(record, record.getType().getCode());
         }
-
-        return nameServersResponse;
-    }
+    };
 
     /**
      * Formats and prints record details (for when trace is on)
@@ -0,0 +1,290 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.*;
+import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/** A caching recursive resolver that serves standard DNS queries from stub resolvers over UDP
+ * and TCP on a local port. Queries whose answers are already in the DNS cache are answered
+ * directly by the thread that received them; the others are resolved iteratively and answered
+ * when the resolution completes. TCP connections are each served by one of a pool of worker
+ * threads. Responses are always built from the records in the cache.
+ */
+public class DNSResolverServer {
+
+    private static final int HEADER_SIZE = 12;
+    private static final int MAX_UDP_MESSAGE = 512;
+    private static final int MAX_TCP_MESSAGE = 65535;
+    private static final int TCP_IDLE_TIMEOUT = 10000; // milliseconds
+
+    // Response codes
+    private static final int NO_ERROR = 0;
+    private static final int FORMAT_ERROR = 1;
+    private static final int SERVER_FAILURE = 2;
+    private static final int NAME_ERROR = 3;
+    private static final int NOT_IMPLEMENTED = 4;
+
+    private final int port;
+    private final ExecutorService workers;
+    private final DNSCache cache = DNSCache.getInstance();
+    private DatagramSocket udpSocket;
+    private ServerSocket tcpSocket;
+
+    /** A parsed query received from a client.
+     */
+    static class ClientQuery {
+        int id;
+        int flags;
+        byte[] question; // question section as received, echoed back in the response
+        DNSNode node;
+    }
+
+    /** Creates a resolver server. The server does not listen for queries until it is started.
+     *
+     * @param port    Local port to listen on, for both UDP and TCP.
+     * @param threads Number of worker threads, and so of TCP connections served at once.
+     */
+    public DNSResolverServer(int port, int threads) {
+        this.port = port;
+        this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "resolver-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Binds the UDP and TCP sockets and starts listening for queries on background threads.
+     *
+     * @throws IOException if either socket could not be bound.
+     */
+    public void start() throws IOException {
+        udpSocket = new DatagramSocket(port);
+        try {
+            tcpSocket = new ServerSocket(port);
+        } catch (IOException ex) {
+            udpSocket.close();
+            throw ex;
+        }
+        startListener("resolver-udp", this::serveUdp);
+        startListener("resolver-tcp", this::serveTcp);
+    }
+
+    /** Closes the sockets and stops the worker threads.
+     */
+    public void stop() {
+        udpSocket.close();
+        try {
+            tcpSocket.close();
+        } catch (IOException ignored) {}
+        workers.shutdownNow();
+    }
+
+    private static void startListener(String name, Runnable listener) {
+        Thread thread = new Thread(listener, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Receives UDP queries until the socket is closed.
+     */
+    private void serveUdp() {
+        byte[] buffer = new byte[MAX_UDP_MESSAGE];
+        while (!udpSocket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                udpSocket.receive(packet);
+            } catch (IOException ex) {
+                continue; // socket closed, or a transient error
+            }
+            byte[] message = Arrays.copyOf(packet.getData(), packet.getLength());
+            SocketAddress client = packet.getSocketAddress();
+            handle(message, MAX_UDP_MESSAGE, response -> {
+                try {
+                    udpSocket.send(new DatagramPacket(response, response.length, client));
+                } catch (IOException ignored) {}
+            });
+        }
+    }
+
+    /** Accepts TCP connections until the socket is closed. Each connection is served by a worker.
+     */
+    private void serveTcp() {
+        while (!tcpSocket.isClosed()) {
+            try {
+                Socket connection = tcpSocket.accept();
+                workers.execute(() -> serveTcpConnection(connection));
+            } catch (IOException | RejectedExecutionException ignored) {}
+        }
+    }
+
+    /** Answers length-prefixed queries on a TCP connection until the client closes it or stays
+     * idle for too long. Queries on a connection are answered in order.
+     *
+     * @param connection Connection accepted from a client.
+     */
+    private void serveTcpConnection(Socket connection) {
+        try (Socket socket = connection) {
+            socket.setSoTimeout(TCP_IDLE_TIMEOUT);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (true) {
+                byte[] message = new byte[in.readUnsignedShort()];
+                in.readFully(message);
+                if (message.length < HEADER_SIZE) return; // too short to even reply to
+                byte[] response = answer(message, MAX_TCP_MESSAGE, true);
+                out.writeShort(response.length);
+                out.write(response);
+                out.flush();
+            }
+        } catch (IOException ignored) {
+            // client closed the connection, or timed out
+        }
+    }
+
+    /** Handles one query, answering it on the current thread if it can be answered from cache,
+     * or once it has been resolved otherwise. Resolving holds no thread while it waits for DNS
+     * servers, so any number of queries may be in progress at once.
+     *
+     * @param message  Query received from the client.
+     * @param maxSize  Maximum size of the response for the transport the query came from.
+     * @param reply    Action that sends a response back to the client.
+     */
+    private void handle(byte[] message, int maxSize, Consumer<byte[]> reply) {
+        if (message.length < HEADER_SIZE) return; // too short to even reply to
+        byte[] response = answer(message, maxSize, false);
+        if (response != null) {
+            reply.accept(response);
+            return;
+        }
+        ClientQuery query = parseQuery(message); // known to be valid, or answer would have replied
+        DNSLookupService.resolveAsync(query.node).thenRun(() -> reply.accept(buildCachedResponse(query, maxSize)));
+    }
+
+    /** Builds the response to a query.
+     *
+     * @param message Query received from the client, at least as long as a message header.
+     * @param maxSize Maximum size of the response; larger responses are truncated.
+     * @param resolve Whether the query may be resolved from DNS servers if the answer is not cached.
+     * @return The response to send to the client, or null if resolve is false and the answer is
+     * not cached.
+     */
+    private byte[] answer(byte[] message, int maxSize, boolean resolve) {
+        ClientQuery query;
+        try {
+            query = parseQuery(message);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException | BufferUnderflowException ex) {
+            return buildErrorResponse(message, FORMAT_ERROR);
+        }
+        if (query == null) {
+            return buildErrorResponse(message, FORMAT_ERROR);
+        }
+        if (query.node == null) {
+            return buildResponse(query, NOT_IMPLEMENTED, Collections.emptyList(), maxSize);
+        }
+
+        if (!cache.getCachedAnswer(query.node).isEmpty()
+                || cache.getCachedNegativeAnswer(query.node, new ArrayList<>()) != null) {
+            QueryStatistics.getInstance().recordQuery(query.node, true);
+        } else {
+            if (!resolve) return null;
+            DNSLookupService.getResults(query.node);
+        }
+        return buildCachedResponse(query, maxSize);
+    }
+
+    /** Builds the response to a query from the cache: the answer if it is cached, NXDOMAIN or
+     * an empty NOERROR response if an authoritative server said there is no answer, and
+     * SERVFAIL if neither is known, as when no server could be reached.
+     *
+     * @param query   The query being answered, with a supported type.
+     * @param maxSize Maximum size of the response.
+     * @return The encoded response.
+     */
+    private byte[] buildCachedResponse(ClientQuery query, int maxSize) {
+        List<ResourceRecord> answers = cache.getCachedAnswer(query.node);
+        if (!answers.isEmpty())
+            return buildResponse(query, NO_ERROR, answers, maxSize);
+        List<ResourceRecord> aliases = new ArrayList<>();
+        DNSCache.NegativeAnswer negativeAnswer = cache.getCachedNegativeAnswer(query.node, aliases);
+        if (negativeAnswer == null)
+            return buildResponse(query, SERVER_FAILURE, Collections.emptyList(), maxSize);
+        return buildResponse(query, negativeAnswer == DNSCache.NegativeAnswer.NAME_ERROR ? NAME_ERROR : NO_ERROR,
+                aliases, maxSize);
+    }
+
+    /** Parses the header and question of a client query.
+     *
+     * @param message Query received from the client.
+     * @return The parsed query, with a null node if the query type or class is not supported, or
+     * null if the message is not a standard query with a single question. Only the types whose
+     * records the resolver decodes and caches are supported; SOA and MX queries, whose answers
+     * would always come back empty, are not.
+     */
+    static ClientQuery parseQuery(byte[] message) {
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        ClientQuery query = new ClientQuery();
+        query.id = Short.toUnsignedInt(buffer.getShort(0));
+        query.flags = Short.toUnsignedInt(buffer.getShort(2));
+        boolean isResponse = (query.flags & 0x8000) != 0;
+        int opcode = (query.flags >>> 11) & 15;
+        int qCount = Short.toUnsignedInt(buffer.getShort(4));
+        if (isResponse || opcode != 0 || qCount != 1) return null;
+
+        buffer.position(HEADER_SIZE);
+        String hostName = DNSQueryHandler.decodeName(buffer);
+        int qType = Short.toUnsignedInt(buffer.getShort());
+        int qClass = Short.toUnsignedInt(buffer.getShort());
+        query.question = Arrays.copyOfRange(message, HEADER_SIZE, buffer.position());
+
+        RecordType type = RecordType.getByCode(qType);
+        if (qClass == 1 && isSupported(type) && !hostName.isEmpty())
+            query.node = new DNSNode(hostName, type);
+        return query;
+    }
+
+    private static boolean isSupported(RecordType type) {
+        return type != RecordType.OTHER && type != RecordType.SOA && type != RecordType.MX;
+    }
+
+    /** Builds a response with no question, for queries that could not be parsed.
+     *
+     * @param message      Query received from the client, at least as long as a message header.
+     * @param responseCode Response code to return.
+     * @return The response to send to the client.
+     */
+    private static byte[] buildErrorResponse(byte[] message, int responseCode) {
+        ClientQuery query = new ClientQuery();
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        query.id = Short.toUnsignedInt(buffer.getShort(0));
+        query.flags = Short.toUnsignedInt(buffer.getShort(2)) & 0x7900; // keep opcode and RD only
+        query.question = new byte[0];
+        return buildResponse(query, responseCode, Collections.emptyList(), MAX_UDP_MESSAGE);
+    }
+
+    /** Builds a response to a client query. If the response does not fit in the maximum size,
+     * the answers are left out and the TC (truncated) flag is set, so the client retries over TCP.
+     *
+     * @param query        The query being answered.
+     * @param responseCode Response code to return.
+     * @param answers      Records for the answer section.
+     * @param maxSize      Maximum size of the response.
+     * @return The encoded response.
+     */
+    private static byte[] buildResponse(ClientQuery query, int responseCode, List<ResourceRecord> answers,
+                                        int maxSize) {
+        // QR | OPCODE and RD copied from the query | RA | RCODE
+        int flags = 0x8000 | (query.flags & 0x7900) | 0x0080 | responseCode;
+        byte[] response = DNSQueryHandler.encodeResponse(query.id, flags, query.question, answers,
+                Collections.emptyList(), Collections.emptyList());
+        if (response.length > maxSize)
+            response = DNSQueryHandler.encodeResponse(query.id, flags | 0x0200, query.question,
+                    Collections.emptyList(), Collections.emptyList(), Collections.emptyList());
+        return response;
+    }
+}
@@ -0,0 +1,312 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/** A streaming parser for DNS response messages. The parser walks the message once, section by
+ * section, and hands the records to one or more visitors. Nothing is built for a record that no
+ * visitor asks for: whole sections and individual records are skipped using their RDLENGTH,
+ * without decoding their names or data. Caching the records is just one kind of visitor, so a
+ * caller that only needs, say, the referral NS set does not have to pay for the rest.
+ *
+ * Only records of the types the resolver can represent (A, AAAA, NS, CNAME, PTR and SOA) are
+ * materialized; records of other types are always skipped.
+ */
+public class DNSResponseParser {
+
+    private static final int HEADER_SIZE = 12;
+
+    /** The sections of a response that hold resource records, in the order they appear.
+     */
+    public enum Section {
+        ANSWER, AUTHORITY, ADDITIONAL
+    }
+
+    /** Receives the records of a response as it is parsed. A visitor is first told about each
+     * section, and may decline it; within a section it accepted, it is asked about each record
+     * by type before the record is decoded, and then given the records it wanted.
+     */
+    public interface Visitor {
+
+        /** Called at the start of each section, even an empty one, as parsing reaches it.
+         *
+         * @param section The section about to be parsed.
+         * @param count   The number of records in the section.
+         * @return true to be given records from this section, false to skip it.
+         */
+        default boolean enterSection(Section section, int count) {
+            return true;
+        }
+
+        /**
+         * @param section The section the record is in.
+         * @param type    The type of the record.
+         * @return true if the record should be decoded and passed to visitRecord.
+         */
+        default boolean wantRecord(Section section, RecordType type) {
+            return true;
+        }
+
+        /** Called for each record that was wanted.
+         *
+         * @param section The section the record is in.
+         * @param record  The decoded record.
+         */
+        void visitRecord(Section section, ResourceRecord record);
+    }
+
+    private final ByteBuffer buffer;
+    private final int transactionID;
+    private final int flags;
+    private final int questionCount;
+    private final int[] recordCounts = new int[Section.values().length];
+
+    /** Reads the header of a response. The records are not parsed until parse is called.
+     *
+     * @param buffer Buffer holding the response, starting at index 0.
+     * @throws IllegalArgumentException if the buffer is too short to hold a header.
+     */
+    public DNSResponseParser(ByteBuffer buffer) {
+        if (buffer.limit() < HEADER_SIZE)
+            throw new IllegalArgumentException("Response shorter than a DNS header");
+        this.buffer = buffer;
+        this.transactionID = Short.toUnsignedInt(buffer.getShort(0));
+        this.flags = Short.toUnsignedInt(buffer.getShort(2));
+        this.questionCount = Short.toUnsignedInt(buffer.getShort(4));
+        for (Section section : Section.values()) {
+            recordCounts[section.ordinal()] = Short.toUnsignedInt(buffer.getShort(6 + 2 * section.ordinal()));
+        }
+    }
+
+    public int getTransactionID() {
+        return transactionID;
+    }
+
+    /**
+     * @return true if the AA (authoritative answer) flag is set in the response header.
+     */
+    public boolean isAuthoritative() {
+        return (flags & 0x0400) != 0;
+    }
+
+    /**
+     * @return The RCODE of the response header: 0 if no error, 3 if the name does not exist.
+     */
+    public int getResponseCode() {
+        return flags & 15;
+    }
+
+    /**
+     * @param section A record section.
+     * @return The number of records in the section, according to the header.
+     */
+    public int getRecordCount(Section section) {
+        return recordCounts[section.ordinal()];
+    }
+
+    /** Parses the records of the response, passing them to the visitors. Each record is decoded
+     * at most once, however many visitors want it; records that no visitor wants are skipped
+     * over using their RDLENGTH.
+     *
+     * @param visitors Visitors receiving the records.
+     * @throws IllegalArgumentException if a name in the response is malformed.
+     * @throws IndexOutOfBoundsException if the response is truncated.
+     */
+    public void parse(Visitor... visitors) {
+        try {
+            parseRecords(visitors);
+        } catch (BufferUnderflowException e) {
+            throw new IndexOutOfBoundsException("Truncated response");
+        }
+    }
+
+    private void parseRecords(Visitor[] visitors) {
+        buffer.position(HEADER_SIZE);
+        for (int i = 0; i < questionCount; i++) {
+            skipName();
+            buffer.position(buffer.position() + 4); // QTYPE and QCLASS
+        }
+
+        List<Visitor> entered = new ArrayList<>(visitors.length);
+        List<Visitor> wanting = new ArrayList<>(visitors.length);
+        for (Section section : Section.values()) {
+            entered.clear();
+            for (Visitor visitor : visitors) {
+                if (visitor.enterSection(section, getRecordCount(section)))
+                    entered.add(visitor);
+            }
+            for (int i = 0; i < getRecordCount(section); i++) {
+                int recordStart = buffer.position();
+                skipName();
+                RecordType type = RecordType.getByCode(Short.toUnsignedInt(buffer.getShort()));
+                buffer.position(buffer.position() + 6); // class and TTL
+                int rdLength = Short.toUnsignedInt(buffer.getShort());
+                int rdEnd = buffer.position() + rdLength;
+
+                wanting.clear();
+                if (type != RecordType.OTHER && type != RecordType.MX) {
+                    for (Visitor visitor : entered) {
+                        if (visitor.wantRecord(section, type))
+                            wanting.add(visitor);
+                    }
+                }
+                if (!wanting.isEmpty()) {
+                    ResourceRecord record = decodeRecord(recordStart, type, rdLength);
+                    if (record != null) {
+                        for (Visitor visitor : wanting) {
+                            visitor.visitRecord(section, record);
+                        }
+                    }
+                }
+                buffer.position(rdEnd); // move past data, whether or not it was decoded
+            }
+        }
+    }
+
+    /** Returns a visitor that adds the records it is given to a cache. SOA records are not
+     * cached.
+     *
+     * @param cache    Cache the records are added to.
+     * @param sections Sections whose records are cached, or none to cache every section.
+     * @return The caching visitor.
+     */
+    public static Visitor caching(DNSCache cache, Section... sections) {
+        Set<Section> cached = sections.length == 0 ? EnumSet.allOf(Section.class)
+                : EnumSet.copyOf(Arrays.asList(sections));
+        return new Visitor() {
+            @Override
+            public boolean enterSection(Section section, int count) {
+                return cached.contains(section);
+            }
+
+            @Override
+            public boolean wantRecord(Section section, RecordType type) {
+                return type != RecordType.SOA;
+            }
+
+            @Override
+            public void visitRecord(Section section, ResourceRecord record) {
+                cache.addResult(record);
+            }
+        };
+    }
+
+    /** Returns a visitor that collects the records of one type into a set.
+     *
+     * @param results  Set the records are added to.
+     * @param type     Type of the records collected.
+     * @param sections Sections the records are collected from, or none to collect from every section.
+     * @return The collecting visitor.
+     */
+    public static Visitor collecting(Set<ResourceRecord> results, RecordType type, Section... sections) {
+        Set<Section> collected = sections.length == 0 ? EnumSet.allOf(Section.class)
+                : EnumSet.copyOf(Arrays.asList(sections));
+        return new Visitor() {
+            @Override
+            public boolean enterSection(Section section, int count) {
+                return collected.contains(section);
+            }
+
+            @Override
+            public boolean wantRecord(Section section, RecordType recordType) {
+                return recordType == type;
+            }
+
+            @Override
+            public void visitRecord(Section section, ResourceRecord record) {
+                results.add(record);
+            }
+        };
+    }
+
+    /** Returns a visitor that passes on to another visitor only the records whose owner name is
+     * in a zone: the zone name itself, or a name ending with it. This keeps a server from
+     * supplying records for names it has no authority over, such as NS records and glue that
+     * would redirect lookups for another zone to servers of its choice.
+     *
+     * @param zone    Zone name, or "" for the root, which holds every name.
+     * @param visitor Visitor receiving the records in the zone.
+     * @return The filtering visitor.
+     */
+    public static Visitor within(String zone, Visitor visitor) {
+        String suffix = "." + zone.toLowerCase();
+        return new Visitor() {
+            @Override
+            public boolean enterSection(Section section, int count) {
+                return visitor.enterSection(section, count);
+            }
+
+            @Override
+            public boolean wantRecord(Section section, RecordType type) {
+                return visitor.wantRecord(section, type);
+            }
+
+            @Override
+            public void visitRecord(Section section, ResourceRecord record) {
+                String name = record.getHostName().toLowerCase();
+                if (zone.isEmpty() || name.equals(zone.toLowerCase()) || name.endsWith(suffix))
+                    visitor.visitRecord(section, record);
+            }
+        };
+    }
+
+    /** Decodes a record whose header has already been read, leaving the buffer position
+     * somewhere within or at the end of its data.
+     *
+     * @param recordStart Position of the owner name of the record.
+     * @param type        Type of the record.
+     * @param rdLength    Length of the record data, which starts at the current position.
+     * @return The record, or null if its data does not match its type.
+     */
+    private ResourceRecord decodeRecord(int recordStart, RecordType type, int rdLength) {
+        int rdStart = buffer.position();
+        long ttl = Integer.toUnsignedLong(buffer.getInt(rdStart - 6));
+        buffer.position(recordStart);
+        String name = DNSQueryHandler.decodeName(buffer);
+        buffer.position(rdStart);
+
+        switch (type) {
+            case A:
+            case AAAA:
+                byte[] address = new byte[type == RecordType.A ? 4 : 16];
+                if (rdLength != address.length) return null;
+                buffer.get(address);
+                try {
+                    return new ResourceRecord(name, type, ttl, InetAddress.getByAddress(address));
+                } catch (UnknownHostException e) {
+                    return null; // not expected, the length was checked
+                }
+            case NS:
+            case CNAME:
+            case PTR:
+                return new ResourceRecord(name, type, ttl, DNSQueryHandler.decodeName(buffer));
+            case SOA:
+                // SOA records are only used for negative answers, which may be cached for the
+                // smaller of the record TTL and its MINIMUM field, the last of the data (RFC 2308)
+                if (rdLength >= 4)
+                    ttl = Math.min(ttl, Integer.toUnsignedLong(buffer.getInt(rdStart + rdLength - 4)));
+                return new ResourceRecord(name, type, ttl, "----");
+            default:
+                return null;
+        }
+    }
+
+    /** Moves the buffer position past a name without decoding it. A name ends with either the
+     * zero-length root label or a compression pointer, which need not be followed.
+     */
+    private void skipName() {
+        while (true) {
+            int length = Byte.toUnsignedInt(buffer.get());
+            if (length == 0) return;
+            if ((length & 0xC0) == 0xC0) {
+                buffer.get(); // second byte of the pointer
+                return;
+            }
+            if ((length & 0xC0) != 0) throw new IllegalArgumentException("Invalid label type in name");
+            buffer.position(buffer.position() + length);
+        }
+    }
+}
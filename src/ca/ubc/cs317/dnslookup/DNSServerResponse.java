@@ -18,4 +18,18 @@ public class DNSServerResponse {
     public int getTransactionID() {
         return transactionID;
     }
+
+    /**
+     * @return true if the AA (authoritative answer) flag is set in the response header.
+     */
+    public boolean isAuthoritative() {
+        return ((response.get(2) >>> 2) & 1) != 0;
+    }
+
+    /**
+     * @return The RCODE of the response header: 0 if no error, 3 if the name does not exist.
+     */
+    public int getResponseCode() {
+        return response.get(3) & 15;
+    }
 }
@@ -0,0 +1,178 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/** Tracks the most frequent keys in a stream, in constant memory. Frequencies are estimated with
+ * a count-min sketch, and the keys with the highest estimates are kept in a small table managed
+ * as in the Space-Saving algorithm: when the table is full, a key whose estimate exceeds the
+ * smallest count in the table replaces that entry. The table is a binary min-heap indexed by
+ * key, so counting a key takes O(log k) time for a table of k keys, however full it is.
+ *
+ * Counts decay exponentially over time, halving every half-life, so the table follows the
+ * current popularity of keys rather than their all-time totals. Decay is applied in steps of an
+ * eighth of the half-life, as the tracker is used.
+ */
+public class HeavyHitters {
+
+    private static final int SKETCH_DEPTH = 4;
+    private static final int SKETCH_WIDTH = 2048;
+    private static final int DECAY_STEPS = 8; // decay steps per half-life
+
+    private final int capacity;
+    private final long decayIntervalMillis;
+    private final double decayFactor;
+    private final double[][] sketch = new double[SKETCH_DEPTH][SKETCH_WIDTH];
+    // the table of most frequent keys: a min-heap of counts, with the position of each key in it
+    private final String[] heapKeys;
+    private final double[] heapCounts;
+    private final Map<String, Integer> heapIndex = new HashMap<>();
+    private long nextDecay;
+
+    /** Creates an empty tracker.
+     *
+     * @param capacity       Number of keys kept in the table of most frequent keys.
+     * @param halfLifeMillis Time, in milliseconds, over which counts lose half their weight.
+     */
+    public HeavyHitters(int capacity, long halfLifeMillis) {
+        this.capacity = capacity;
+        this.heapKeys = new String[capacity];
+        this.heapCounts = new double[capacity];
+        this.decayIntervalMillis = Math.max(1, halfLifeMillis / DECAY_STEPS);
+        this.decayFactor = Math.pow(0.5, 1.0 / DECAY_STEPS);
+        this.nextDecay = System.currentTimeMillis() + decayIntervalMillis;
+    }
+
+    /** Counts one occurrence of a key.
+     *
+     * @param key The key.
+     */
+    public void add(String key) {
+        int[] cells = cells(key); // hashed before taking the lock
+        synchronized (this) {
+            decay();
+            double estimate = Double.MAX_VALUE;
+            for (int row = 0; row < SKETCH_DEPTH; row++) {
+                estimate = Math.min(estimate, ++sketch[row][cells[row]]);
+            }
+
+            Integer position = heapIndex.get(key);
+            if (position != null) {
+                heapCounts[position] = estimate; // estimates only grow between decays
+                siftDown(position);
+            } else if (heapIndex.size() < capacity) {
+                position = heapIndex.size();
+                place(position, key, estimate);
+                siftUp(position);
+            } else if (capacity > 0 && estimate > heapCounts[0]) {
+                heapIndex.remove(heapKeys[0]);
+                place(0, key, estimate);
+                siftDown(0);
+            }
+        }
+    }
+
+    /** Returns the estimated (decayed) count of a key, which may be too high but never too low.
+     *
+     * @param key The key.
+     * @return The estimated count.
+     */
+    public synchronized double estimate(String key) {
+        decay();
+        int[] cells = cells(key);
+        double estimate = Double.MAX_VALUE;
+        for (int row = 0; row < SKETCH_DEPTH; row++) {
+            estimate = Math.min(estimate, sketch[row][cells[row]]);
+        }
+        return estimate;
+    }
+
+    /** Returns the most frequent keys, most frequent first.
+     *
+     * @param n Maximum number of keys returned; at most the capacity of the tracker.
+     * @return The keys and their estimated (decayed) counts.
+     */
+    public synchronized List<Map.Entry<String, Double>> top(int n) {
+        decay();
+        List<Map.Entry<String, Double>> entries = new ArrayList<>();
+        for (int i = 0; i < heapIndex.size(); i++) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(heapKeys[i], heapCounts[i]));
+        }
+        entries.sort(Map.Entry.<String, Double>comparingByValue().reversed());
+        return entries.subList(0, Math.min(n, entries.size()));
+    }
+
+    /** Applies the decay steps that are due.
+     */
+    private void decay() {
+        long now = System.currentTimeMillis();
+        if (now < nextDecay) return;
+        long steps = (now - nextDecay) / decayIntervalMillis + 1;
+        nextDecay += steps * decayIntervalMillis;
+        double factor = Math.pow(decayFactor, steps);
+        for (double[] row : sketch) {
+            for (int i = 0; i < SKETCH_WIDTH; i++) {
+                row[i] *= factor;
+            }
+        }
+        for (int i = 0; i < heapIndex.size(); i++) {
+            heapCounts[i] *= factor; // the same factor for all, so the heap order holds
+        }
+    }
+
+    private void place(int position, String key, double count) {
+        heapKeys[position] = key;
+        heapCounts[position] = count;
+        heapIndex.put(key, position);
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (heapCounts[parent] <= heapCounts[position]) return;
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        int size = heapIndex.size();
+        while (true) {
+            int smallest = position;
+            for (int child = 2 * position + 1; child <= 2 * position + 2 && child < size; child++) {
+                if (heapCounts[child] < heapCounts[smallest]) smallest = child;
+            }
+            if (smallest == position) return;
+            swap(position, smallest);
+            position = smallest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        String key = heapKeys[i];
+        double count = heapCounts[i];
+        place(i, heapKeys[j], heapCounts[j]);
+        place(j, key, count);
+    }
+
+    /** Computes the cell of a key in each row of the sketch, using independent hashes derived
+     * from two base hashes of the key.
+     */
+    private static int[] cells(String key) {
+        int h1 = key.hashCode();
+        int h2 = 0x811C9DC5; // FNV-1a
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h2 = (h2 ^ (b & 0xFF)) * 0x01000193;
+        }
+        h2 |= 1;
+        int[] cells = new int[SKETCH_DEPTH];
+        for (int row = 0; row < SKETCH_DEPTH; row++) {
+            int hash = h1 + row * h2;
+            hash ^= hash >>> 16;
+            hash *= 0x85EBCA6B;
+            hash ^= hash >>> 13;
+            cells[row] = Math.floorMod(hash, SKETCH_WIDTH);
+        }
+        return cells;
+    }
+}
@@ -0,0 +1,87 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.Set;
+import java.util.concurrent.*;
+
+/** The time budget of one lookup, shared by every query sent on its behalf: referrals, lookups
+ * of name server addresses and CNAME targets alike. Each query is given only the time that
+ * remains, and once the budget runs out, the queries still outstanding are cancelled and no new
+ * ones are sent, so the lookup completes with whatever was found by then.
+ */
+public class LookupDeadline {
+
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "lookup-deadline");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        // most lookups complete in time, so their expiry is cancelled; drop it from the queue at
+        // once rather than keeping it, and the lookup it refers to, until it would have run
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    private final long timeoutMillis;
+    private final long deadline; // System.nanoTime() value
+    private final Set<CompletableFuture<?>> outstanding = ConcurrentHashMap.newKeySet();
+    private volatile boolean expired = false;
+    private final ScheduledFuture<?> expiry;
+
+    /** Starts the budget of a lookup.
+     *
+     * @param timeoutMillis Time the lookup may take, in milliseconds.
+     */
+    public LookupDeadline(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.expiry = timer.schedule(this::expire, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return The time the lookup was allowed to take, in milliseconds.
+     */
+    public long getTimeout() {
+        return timeoutMillis;
+    }
+
+    /**
+     * @return The deadline, as a System.nanoTime() value.
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @return true once the budget has run out.
+     */
+    public boolean isExpired() {
+        return expired || System.nanoTime() - deadline >= 0;
+    }
+
+    /** Registers a query sent on behalf of the lookup, so it is cancelled if the budget runs out
+     * before it completes.
+     *
+     * @param query Future of the query.
+     * @return The same future.
+     */
+    public <T> CompletableFuture<T> track(CompletableFuture<T> query) {
+        outstanding.add(query);
+        query.whenComplete((result, ex) -> outstanding.remove(query));
+        if (expired) query.cancel(false);
+        return query;
+    }
+
+    /** Stops the timer of a lookup that completed within its budget.
+     */
+    public void complete() {
+        expiry.cancel(false);
+    }
+
+    private void expire() {
+        expired = true;
+        for (CompletableFuture<?> query : outstanding) {
+            query.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+
+/** This class keeps track of what drives the load on the resolver: the names clients ask for
+ * most, the names that most often have to be resolved because they are not cached, and the DNS
+ * servers queried most. Each is tracked with a HeavyHitters table in constant memory, with
+ * counts that fade over a few minutes, so the tables reflect current traffic.
+ */
+public class QueryStatistics {
+
+    private static final int TRACKED_KEYS = 100;
+    private static final long HALF_LIFE = 5 * 60 * 1000; // milliseconds
+
+    private static QueryStatistics instance = new QueryStatistics();
+
+    private final HeavyHitters queries = new HeavyHitters(TRACKED_KEYS, HALF_LIFE);
+    private final HeavyHitters cacheMisses = new HeavyHitters(TRACKED_KEYS, HALF_LIFE);
+    private final HeavyHitters upstreamServers = new HeavyHitters(TRACKED_KEYS, HALF_LIFE);
+
+    /** Singleton retrieval method. Only one instance of the statistics can be created, so every
+     * component records into, and reads from, the same tables.
+     *
+     * @return Instance of the query statistics.
+     */
+    public static QueryStatistics getInstance() {
+        return instance;
+    }
+
+    /** Records a query received from a client.
+     *
+     * @param node     Host name and record type of the query.
+     * @param cacheHit true if the query could be answered from the cache.
+     */
+    public void recordQuery(DNSNode node, boolean cacheHit) {
+        String key = key(node);
+        queries.add(key);
+        if (!cacheHit) cacheMisses.add(key);
+    }
+
+    /** Records a query packet sent to a DNS server, including retries.
+     *
+     * @param server Address of the server.
+     */
+    public void recordUpstreamQuery(InetAddress server) {
+        upstreamServers.add(server.getHostAddress());
+    }
+
+    /**
+     * @param n Maximum number of names returned.
+     * @return The names queried most, as "hostName TYPE", with their estimated recent query counts.
+     */
+    public List<Map.Entry<String, Double>> getHottestNames(int n) {
+        return queries.top(n);
+    }
+
+    /**
+     * @param n Maximum number of names returned.
+     * @return The names that missed the cache most, as "hostName TYPE", with their estimated
+     * recent miss counts.
+     */
+    public List<Map.Entry<String, Double>> getWorstCacheMisses(int n) {
+        return cacheMisses.top(n);
+    }
+
+    /**
+     * @param n Maximum number of servers returned.
+     * @return The addresses of the servers queried most, with their estimated recent query counts.
+     */
+    public List<Map.Entry<String, Double>> getBusiestServers(int n) {
+        return upstreamServers.top(n);
+    }
+
+    /** Returns the estimated recent query count of a name, for example to decide whether it is
+     * worth refreshing before it expires.
+     *
+     * @param node Host name and record type.
+     * @return The estimated count, which may be too high but never too low.
+     */
+    public double getQueryCount(DNSNode node) {
+        return queries.estimate(key(node));
+    }
+
+    private static String key(DNSNode node) {
+        return node.getHostName().toLowerCase() + " " + node.getType();
+    }
+}
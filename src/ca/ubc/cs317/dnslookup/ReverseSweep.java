@@ -0,0 +1,129 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Maps a range of IP addresses back to host names, by looking up the PTR records of their
+ * in-addr.arpa (IPv4) or ip6.arpa (IPv6) names. The first address is looked up on its own, so the
+ * delegations down to the reverse zone are cached before the other lookups start; the rest are
+ * then resolved concurrently, with a bounded number of lookups in progress at once, and their
+ * results printed as they arrive. A throughput report is printed at the end.
+ */
+public class ReverseSweep {
+
+    public static final int DEFAULT_PARALLELISM = 32;
+    private static final int MAX_ADDRESSES = 65536;
+
+    /** Looks up the host names of every address in a range, printing them as they are found.
+     * Addresses without a name are only counted in the final report.
+     *
+     * @param cidr        Range of addresses, as an address and a prefix length, e.g. 192.0.2.0/24.
+     * @param parallelism Maximum number of lookups in progress at once.
+     * @throws IllegalArgumentException if the range is malformed or holds too many addresses.
+     */
+    public static void sweep(String cidr, int parallelism) {
+        List<InetAddress> addresses = expand(cidr);
+        Semaphore inProgress = new Semaphore(parallelism);
+        AtomicInteger named = new AtomicInteger();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < addresses.size(); i++) {
+            InetAddress address = addresses.get(i);
+            inProgress.acquireUninterruptibly();
+            DNSNode node = new DNSNode(reverseName(address), RecordType.PTR);
+            CompletableFuture<Set<ResourceRecord>> lookup = DNSLookupService.resolveAsync(node)
+                    .whenComplete((results, ex) -> {
+                        if (results != null && !results.isEmpty()) {
+                            named.incrementAndGet();
+                            printResults(address, results);
+                        }
+                        inProgress.release();
+                    });
+            if (i == 0) lookup.join(); // cache the delegations before the others start
+        }
+        inProgress.acquireUninterruptibly(parallelism); // wait for the last lookups
+        long end = System.nanoTime();
+
+        double seconds = (end - start) / 1e9;
+        System.out.printf("Found names for %d of %d addresses in %.1f ms (%.1f lookups/s)\n", named.get(),
+                addresses.size(), seconds * 1000, addresses.size() / seconds);
+    }
+
+    /** Lists the addresses in a range.
+     *
+     * @param cidr Range of addresses, as an address and a prefix length, e.g. 192.0.2.0/24 or
+     *             2001:db8::/120. A lone address stands for itself.
+     * @return The addresses, in increasing order.
+     * @throws IllegalArgumentException if the range is malformed or holds too many addresses.
+     */
+    public static List<InetAddress> expand(String cidr) {
+        String[] parts = cidr.split("/", 2);
+        byte[] base;
+        try {
+            if (!parts[0].matches("[0-9a-fA-F:.]+")) throw new UnknownHostException(parts[0]);
+            base = InetAddress.getByName(parts[0]).getAddress(); // a literal, so nothing is looked up
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("invalid address " + parts[0]);
+        }
+        int bits = base.length * 8;
+        int prefix;
+        try {
+            prefix = parts.length == 2 ? Integer.parseInt(parts[1]) : bits;
+        } catch (NumberFormatException e) {
+            prefix = -1;
+        }
+        if (prefix < 0 || prefix > bits)
+            throw new IllegalArgumentException("invalid prefix length " + parts[1]);
+        if (bits - prefix > 31 || 1L << (bits - prefix) > MAX_ADDRESSES)
+            throw new IllegalArgumentException("ranges are limited to " + MAX_ADDRESSES + " addresses");
+
+        for (int bit = prefix; bit < bits; bit++) {
+            base[bit / 8] &= (byte) ~(0x80 >>> (bit % 8)); // clear the host part
+        }
+        int count = 1 << (bits - prefix);
+        List<InetAddress> addresses = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] address = base.clone();
+            for (int b = address.length - 1, carry = i; b >= 0 && carry != 0; b--, carry >>>= 8) {
+                address[b] |= (byte) carry; // host bits are clear, so or-ing adds
+            }
+            try {
+                addresses.add(InetAddress.getByAddress(address));
+            } catch (UnknownHostException e) {
+                throw new IllegalStateException(e); // not expected, the length is that of a valid address
+            }
+        }
+        return addresses;
+    }
+
+    /** Returns the name under which the PTR records of an address are found.
+     *
+     * @param address The address.
+     * @return Its name in in-addr.arpa for an IPv4 address, or in ip6.arpa for an IPv6 address.
+     */
+    public static String reverseName(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        StringBuilder name = new StringBuilder();
+        for (int b = bytes.length - 1; b >= 0; b--) {
+            if (address instanceof Inet4Address) {
+                name.append(Byte.toUnsignedInt(bytes[b])).append('.');
+            } else {
+                name.append(Character.forDigit(bytes[b] & 0xF, 16)).append('.');
+                name.append(Character.forDigit((bytes[b] >> 4) & 0xF, 16)).append('.');
+            }
+        }
+        return name.append(address instanceof Inet4Address ? "in-addr.arpa" : "ip6.arpa").toString();
+    }
+
+    private static synchronized void printResults(InetAddress address, Set<ResourceRecord> results) {
+        for (ResourceRecord record : results) {
+            System.out.printf("%-40s %-5s %-8d %s\n", address.getHostAddress(), record.getType(),
+                    record.getTTL(), record.getTextResult());
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+
+/** The root servers that cold lookups start at. Servers are chosen by their measured response
+ * time: each lookup tries the healthy servers fastest first, so a server that stops responding
+ * is failed over at once, within the same lookup. A server whose response time was not measured
+ * for a while is tried first by one lookup, so the ranking follows changes in the other servers
+ * too; the measured response times themselves are never adjusted.
+ *
+ * A server that fails to respond is marked as unhealthy and only used once every healthy server
+ * has failed too. Unhealthy servers are probed in the background with a query for the root NS
+ * records, and become healthy again as soon as they answer one.
+ */
+public class RootServerPool {
+
+    private static final long MIN_ATTEMPT_TIMEOUT = 250; // milliseconds
+    private static final long MAX_ATTEMPT_TIMEOUT = 2000; // milliseconds
+    private static final double RTT_WEIGHT = 0.3; // weight of a new sample in the smoothed response time
+    private static final long EXPLORE_INTERVAL = 60000; // milliseconds without a measurement before a server is tried first
+    private static final long PROBE_INTERVAL = 10000; // milliseconds
+    private static final long PROBE_TIMEOUT = 2000; // milliseconds
+    private static final DNSNode PROBE_QUERY = new DNSNode("", RecordType.NS);
+
+    private static RootServerPool instance = new RootServerPool();
+
+    private volatile List<Member> members = Collections.emptyList();
+
+    /** One server of the pool. A new server has no measurement yet, so it is tried first.
+     */
+    private static class Member {
+        final InetAddress address;
+        double smoothedRtt = 0; // milliseconds
+        long lastMeasured = 0; // System.currentTimeMillis() of the last response, or of the last exploration
+        boolean healthy = true;
+        long responses = 0;
+        long failures = 0;
+
+        Member(InetAddress address) {
+            this.address = address;
+        }
+    }
+
+    private RootServerPool() {
+        ScheduledExecutorService prober = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "root-server-prober");
+            thread.setDaemon(true);
+            return thread;
+        });
+        prober.scheduleWithFixedDelay(this::probeUnhealthy, PROBE_INTERVAL, PROBE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /** Singleton retrieval method. Only one instance of the pool can be created, so every lookup
+     * shares what was learnt about the servers.
+     *
+     * @return Instance of the root server pool.
+     */
+    public static RootServerPool getInstance() {
+        return instance;
+    }
+
+    /** Replaces the servers of the pool. Servers already in the pool keep their state.
+     *
+     * @param servers Addresses of the servers, in order of preference until they are measured.
+     */
+    public synchronized void setServers(Collection<InetAddress> servers) {
+        Map<InetAddress, Member> current = new HashMap<>();
+        for (Member member : members) {
+            current.put(member.address, member);
+        }
+        List<Member> updated = new ArrayList<>();
+        for (InetAddress server : new LinkedHashSet<>(servers)) {
+            updated.add(current.getOrDefault(server, new Member(server)));
+        }
+        members = Collections.unmodifiableList(updated);
+    }
+
+    /** Adds servers to the pool, unless they are already in it.
+     *
+     * @param servers Addresses of the servers.
+     */
+    public synchronized void addServers(Collection<InetAddress> servers) {
+        List<InetAddress> all = new ArrayList<>(getServers());
+        all.addAll(servers);
+        setServers(all);
+    }
+
+    /**
+     * @return The addresses of the servers of the pool.
+     */
+    public List<InetAddress> getServers() {
+        List<InetAddress> servers = new ArrayList<>();
+        for (Member member : members) {
+            servers.add(member.address);
+        }
+        return servers;
+    }
+
+    /** Returns the servers in the order a lookup should try them: healthy servers fastest first,
+     * then the unhealthy ones. A healthy server that was not measured for a while is put first,
+     * for this lookup only, so it is measured again.
+     *
+     * @return The addresses of the servers, in order.
+     */
+    public List<InetAddress> select() {
+        List<Member> ordered;
+        synchronized (this) {
+            ordered = ranked();
+            Member first = ordered.isEmpty() ? null : ordered.get(0);
+            if (first != null && first.healthy && isDue(first, System.currentTimeMillis()))
+                first.lastMeasured = System.currentTimeMillis(); // explored by this lookup, not by the next ones
+        }
+        List<InetAddress> servers = new ArrayList<>();
+        for (Member member : ordered) {
+            servers.add(member.address);
+        }
+        return servers;
+    }
+
+    /**
+     * @param server Address of a server.
+     * @return true if the server is in the pool and healthy.
+     */
+    public boolean isHealthy(InetAddress server) {
+        Member member = find(server);
+        if (member == null) return false;
+        synchronized (this) {
+            return member.healthy;
+        }
+    }
+
+    /**
+     * @param server Address of a server.
+     * @return true if the server is in the pool.
+     */
+    public boolean contains(InetAddress server) {
+        return find(server) != null;
+    }
+
+    /** Returns how long to wait for a response from a server of the pool before trying the next
+     * one: a few times its response time, within fixed bounds.
+     *
+     * @param server Address of a server of the pool.
+     * @return The time to wait, in milliseconds.
+     */
+    public long getAttemptTimeout(InetAddress server) {
+        Member member = find(server);
+        if (member == null) return MAX_ATTEMPT_TIMEOUT;
+        synchronized (this) {
+            if (member.responses == 0) return MAX_ATTEMPT_TIMEOUT; // nothing measured to go by
+            return Math.max(MIN_ATTEMPT_TIMEOUT, Math.min(MAX_ATTEMPT_TIMEOUT, (long) (4 * member.smoothedRtt)));
+        }
+    }
+
+    /** Records a response from a server. Nothing is recorded for servers outside the pool.
+     *
+     * @param server     Address of the server.
+     * @param rttMillis  Time the server took to respond, in milliseconds.
+     */
+    public void recordResponse(InetAddress server, double rttMillis) {
+        Member member = find(server);
+        if (member == null) return;
+        synchronized (this) {
+            member.smoothedRtt = member.responses == 0 ? rttMillis
+                    : (1 - RTT_WEIGHT) * member.smoothedRtt + RTT_WEIGHT * rttMillis;
+            member.responses++;
+            member.lastMeasured = System.currentTimeMillis();
+            member.healthy = true;
+        }
+    }
+
+    /** Records that a server did not respond, marking it as unhealthy. Nothing is recorded for
+     * servers outside the pool.
+     *
+     * @param server Address of the server.
+     */
+    public void recordFailure(InetAddress server) {
+        Member member = find(server);
+        if (member == null) return;
+        synchronized (this) {
+            member.failures++;
+            member.healthy = false;
+        }
+    }
+
+    /** Perform a specific action for each server of the pool, in the order a lookup would try
+     * them now. The action receives the server address and a line describing its state, smoothed
+     * response time, and numbers of responses and failures.
+     *
+     * @param consumer Action to be performed for each server.
+     */
+    public synchronized void forEachServer(BiConsumer<String, String> consumer) {
+        for (Member member : ranked()) {
+            consumer.accept(member.address.getHostAddress(), String.format("%-9s %-10s %-9d %d",
+                    member.healthy ? "healthy" : "unhealthy",
+                    member.responses == 0 ? "-" : String.format("%.1f ms", member.smoothedRtt),
+                    member.responses, member.failures));
+        }
+    }
+
+    /** Sends a probe query to each unhealthy server.
+     */
+    private void probeUnhealthy() {
+        for (Member member : members) {
+            boolean healthy;
+            synchronized (this) {
+                healthy = member.healthy;
+            }
+            if (healthy) continue;
+            long started = System.nanoTime();
+            long deadline = started + TimeUnit.MILLISECONDS.toNanos(PROBE_TIMEOUT);
+            DNSQueryHandler.sendQueryAsync(member.address, PROBE_QUERY, deadline, PROBE_TIMEOUT)
+                    .whenComplete((response, ex) -> {
+                        if (response != null)
+                            recordResponse(member.address, (System.nanoTime() - started) / 1e6);
+                    });
+        }
+    }
+
+    /** Orders the servers: healthy ones first, those due to be measured again first among them,
+     * then by measured response time. Must be called with the pool locked.
+     */
+    private List<Member> ranked() {
+        long now = System.currentTimeMillis();
+        List<Member> ordered = new ArrayList<>(members);
+        ordered.sort(Comparator.<Member, Boolean>comparing(member -> !member.healthy)
+                .thenComparing(member -> !isDue(member, now))
+                .thenComparingDouble(member -> member.smoothedRtt));
+        return ordered;
+    }
+
+    private static boolean isDue(Member member, long now) {
+        return now - member.lastMeasured >= EXPLORE_INTERVAL;
+    }
+
+    private Member find(InetAddress server) {
+        for (Member member : members) {
+            if (member.address.equals(server)) return member;
+        }
+        return null;
+    }
+}
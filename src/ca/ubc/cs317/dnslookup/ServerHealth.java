@@ -0,0 +1,152 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/** This class remembers DNS servers that recently failed, so every lookup can avoid them rather
+ * than waiting for them again. A server that fails is held down for a while; each further
+ * failure doubles the hold-down time, up to a maximum, and any good response clears it.
+ *
+ * A server that does not respond, or refuses queries, is held down for every zone. A lame
+ * server, which responds without being authoritative for a zone it was delegated and without
+ * referring the query any closer, is only held down for that zone.
+ *
+ * A server is forgotten once its hold-down has been over for as long again as it lasted, so the
+ * table does not grow with every server that ever failed, while a server that fails again soon
+ * after its hold-down still has it doubled.
+ */
+public class ServerHealth {
+
+    private static final long INITIAL_HOLD_DOWN = 30 * 1000; // milliseconds
+    private static final long MAX_HOLD_DOWN = 30 * 60 * 1000; // milliseconds
+    private static final long EVICTION_INTERVAL = 60 * 1000; // milliseconds
+
+    private static ServerHealth instance = new ServerHealth();
+
+    private final Map<String, State> states = new ConcurrentHashMap<>();
+
+    /** The kinds of failure that cause a server to be held down.
+     */
+    public enum Problem {
+        TIMEOUT, REFUSED, LAME
+    }
+
+    /** The failures of one server, or of one server for one zone.
+     */
+    private static class State {
+        int failures = 0;
+        long holdDown = 0; // milliseconds
+        long downUntil = 0;
+        Problem lastProblem;
+    }
+
+    private ServerHealth() {
+        ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "server-health-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(this::evictExpired, EVICTION_INTERVAL, EVICTION_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /** Singleton retrieval method. Only one instance of the table can be created, so what one
+     * lookup learns about a server is shared with every other lookup.
+     *
+     * @return Instance of the server health table.
+     */
+    public static ServerHealth getInstance() {
+        return instance;
+    }
+
+    /** Records a good response from a server, which ends any hold-down of the server, and of the
+     * server for the zone.
+     *
+     * @param server Address of the server.
+     * @param zone   Zone the server was queried for, or null if not known.
+     */
+    public void recordSuccess(InetAddress server, String zone) {
+        states.remove(key(server, null));
+        if (zone != null) states.remove(key(server, zone));
+    }
+
+    /** Records a failure of a server, and holds it down.
+     *
+     * @param server  Address of the server.
+     * @param zone    Zone the server was queried for, or null if not known. Only used for lame servers.
+     * @param problem What went wrong.
+     */
+    public void recordFailure(InetAddress server, String zone, Problem problem) {
+        // updated within compute, so the entry cannot be evicted in the middle
+        states.compute(key(server, problem == Problem.LAME ? zone : null), (key, state) -> {
+            if (state == null) state = new State();
+            synchronized (state) {
+                state.failures++;
+                state.lastProblem = problem;
+                state.holdDown = Math.min(INITIAL_HOLD_DOWN << Math.min(state.failures - 1, 20), MAX_HOLD_DOWN);
+                state.downUntil = System.currentTimeMillis() + state.holdDown;
+            }
+            return state;
+        });
+    }
+
+    /** Checks whether a server is held down, either altogether or for a zone.
+     *
+     * @param server Address of the server.
+     * @param zone   Zone the server would be queried for, or null if not known.
+     * @return true if the server should be avoided while alternatives remain.
+     */
+    public boolean isHeldDown(InetAddress server, String zone) {
+        return isHeldDown(key(server, null)) || (zone != null && isHeldDown(key(server, zone)));
+    }
+
+    /** Perform a specific action for each server, or server and zone, that failed and was not
+     * heard from since. The action receives the server address (followed by the zone, for a lame
+     * server) and a line describing its state, number of failures in a row, last problem and
+     * remaining hold-down time.
+     *
+     * @param consumer Action to be performed for each server.
+     */
+    public void forEachServer(BiConsumer<String, String> consumer) {
+        long now = System.currentTimeMillis();
+        new TreeMap<>(states).forEach((key, state) -> {
+            synchronized (state) {
+                boolean down = state.downUntil > now;
+                consumer.accept(key, String.format("%-6s %-8d %-8s %s", down ? "down" : "up", state.failures,
+                        state.lastProblem, down ? (state.downUntil - now) + " ms" : "-"));
+            }
+        });
+    }
+
+    /** Forgets the servers whose hold-down has been over for as long again as it lasted.
+     */
+    private void evictExpired() {
+        long now = System.currentTimeMillis();
+        for (String key : states.keySet()) {
+            states.computeIfPresent(key, (k, state) -> {
+                synchronized (state) {
+                    return now - state.downUntil >= state.holdDown ? null : state;
+                }
+            });
+        }
+    }
+
+    private boolean isHeldDown(String key) {
+        State state = states.get(key);
+        if (state == null) return false;
+        synchronized (state) {
+            return state.downUntil > System.currentTimeMillis();
+        }
+    }
+
+    private static String key(InetAddress server, String zone) {
+        // zone names are not case-sensitive, so neither are the keys
+        return zone == null ? server.getHostAddress()
+                : server.getHostAddress() + " " + (zone.isEmpty() ? "." : zone.toLowerCase());
+    }
+}
@@ -0,0 +1,254 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+
+/** This class limits the number of queries outstanding to DNS servers, both in total and for
+ * each individual server. Queries that cannot be sent right away wait in a short, bounded queue;
+ * once the queue is full, or a query has waited too long, the query fails immediately instead of
+ * adding to the load on the server.
+ *
+ * The limit for each server adapts to how the server responds (additive increase, multiplicative
+ * decrease): every query answered without a timeout raises the limit by roughly one per round of
+ * queries, and every timeout halves it. A server that starts dropping queries therefore quickly
+ * gets fewer of them at once.
+ *
+ * Waiting never blocks a thread: a query that cannot be sent yet holds a future that is completed
+ * when its turn comes, so callers may either chain on it or wait for it.
+ *
+ * The limit of a server that has not been queried for a while, and has nothing outstanding, is
+ * forgotten, so the table does not grow with every server ever queried.
+ */
+public class UpstreamLimiter {
+
+    private static final int DEFAULT_GLOBAL_LIMIT = 256;
+    private static final int DEFAULT_MAX_SERVER_LIMIT = 64;
+    private static final double INITIAL_SERVER_LIMIT = 8;
+    private static final double MIN_SERVER_LIMIT = 1;
+    private static final int MAX_QUEUED = 64; // queries waiting for each limit
+    private static final long MAX_QUEUE_WAIT = 1000; // milliseconds
+    private static final long IDLE_EVICTION = 60000; // milliseconds
+
+    private static final ScheduledThreadPoolExecutor queueTimer = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "upstream-limiter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        queueTimer.setRemoveOnCancelPolicy(true); // see LookupDeadline
+    }
+    private static UpstreamLimiter instance = new UpstreamLimiter(); // after the timer it uses
+
+    private final Limit global = new Limit(DEFAULT_GLOBAL_LIMIT);
+    private final Map<InetAddress, Limit> servers = new ConcurrentHashMap<>();
+    private volatile int maxServerLimit = DEFAULT_MAX_SERVER_LIMIT;
+
+    /** Thrown when a query is rejected because too many queries are already outstanding.
+     */
+    public static class OverloadException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public OverloadException(String message) {
+            super(message);
+        }
+    }
+
+    /** A permission to send one query to a server. It must be released once the query is
+     * complete, whether or not it was answered.
+     */
+    public class Permit {
+        private final Limit serverLimit;
+        private boolean timedOut = false;
+        private boolean released = false;
+
+        private Permit(Limit serverLimit) {
+            this.serverLimit = serverLimit;
+        }
+
+        /** Records that the server did not respond in time to (an attempt at) the query.
+         */
+        public void recordTimeout() {
+            timedOut = true;
+        }
+
+        /** Releases the permit, adjusting the limit for the server.
+         *
+         * @param answered true if a response was received from the server.
+         */
+        public void release(boolean answered) {
+            if (released) return;
+            released = true;
+            serverLimit.release(timedOut ? -1 : answered ? 1 : 0);
+            global.release(0);
+        }
+    }
+
+    /** The state of one limit: the number of queries that may be outstanding, the number actually
+     * outstanding, and the queries waiting to be sent, in the order they arrived.
+     */
+    private class Limit {
+        private double limit;
+        private final boolean adaptive;
+        private int inFlight = 0;
+        private final Deque<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+        private long rejected = 0;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        Limit(double limit) {
+            this.limit = limit;
+            this.adaptive = false;
+        }
+
+        Limit() {
+            this.limit = Math.min(INITIAL_SERVER_LIMIT, maxServerLimit);
+            this.adaptive = true;
+        }
+
+        /**
+         * @return A future completed once a query may be sent under this limit, or completed
+         * with an OverloadException if it may not.
+         */
+        synchronized CompletableFuture<Void> acquire(String name) {
+            if (inFlight < (int) limit && waiting.isEmpty()) {
+                inFlight++;
+                return CompletableFuture.completedFuture(null);
+            }
+            if (waiting.size() >= MAX_QUEUED) {
+                rejected++;
+                return CompletableFuture.failedFuture(new OverloadException("Too many queries queued for " + name));
+            }
+            CompletableFuture<Void> waiter = new CompletableFuture<>();
+            waiting.add(waiter);
+            ScheduledFuture<?> expiry = queueTimer.schedule(() -> expire(waiter, name), MAX_QUEUE_WAIT,
+                    TimeUnit.MILLISECONDS);
+            waiter.whenComplete((admitted, ex) -> expiry.cancel(false));
+            return waiter;
+        }
+
+        private void expire(CompletableFuture<Void> waiter, String name) {
+            synchronized (this) {
+                if (!waiting.remove(waiter)) return;
+                rejected++;
+            }
+            waiter.completeExceptionally(new OverloadException("Timed out waiting to query " + name));
+        }
+
+        /**
+         * @param signal 1 to increase the limit, -1 to decrease it, 0 to leave it unchanged.
+         */
+        void release(int signal) {
+            synchronized (this) {
+                inFlight--;
+                if (adaptive && signal > 0)
+                    limit = Math.min(limit + 1 / limit, maxServerLimit);
+                else if (adaptive && signal < 0)
+                    limit = Math.max(limit / 2, MIN_SERVER_LIMIT);
+            }
+            admitWaiting();
+        }
+
+        /** Lets waiting queries go while the limit allows. The waiters are completed outside the
+         * lock, since completing them runs the code that sends their queries.
+         */
+        void admitWaiting() {
+            List<CompletableFuture<Void>> admitted = new ArrayList<>();
+            synchronized (this) {
+                while (inFlight < (int) limit && !waiting.isEmpty()) {
+                    inFlight++;
+                    admitted.add(waiting.poll());
+                }
+            }
+            for (CompletableFuture<Void> waiter : admitted) {
+                if (!waiter.complete(null)) release(0); // the query was abandoned while waiting
+            }
+        }
+
+        /**
+         * @return true if no query is outstanding or waiting, and none was sent for a while.
+         */
+        synchronized boolean isIdle(long now) {
+            return inFlight == 0 && waiting.isEmpty() && now - lastUsed >= IDLE_EVICTION;
+        }
+
+        synchronized String describe() {
+            return String.format("%-8.1f %-9d %-8d %d", limit, inFlight, waiting.size(), rejected);
+        }
+    }
+
+    /** Singleton retrieval method. Only one instance of the limiter can be created, so the
+     * limits apply to every query sent by the process.
+     *
+     * @return Instance of the upstream limiter.
+     */
+    public static UpstreamLimiter getInstance() {
+        return instance;
+    }
+
+    private UpstreamLimiter() {
+        queueTimer.scheduleWithFixedDelay(this::evictIdle, IDLE_EVICTION, IDLE_EVICTION, TimeUnit.MILLISECONDS);
+    }
+
+    /** Obtains a permit to send a query to a server without blocking the calling thread. If the
+     * server or the process already has as many queries outstanding as allowed, the permit is
+     * granted once one of them completes, as long as that happens within a short time.
+     *
+     * @param server Address of the server the query is for.
+     * @return A future completed with a permit that must be released once the query is complete,
+     * or completed exceptionally with an OverloadException if the query cannot be sent without
+     * exceeding a limit.
+     */
+    public CompletableFuture<Permit> acquireAsync(InetAddress server) {
+        // marked as used while in the map, so it cannot be evicted before the query acquires it
+        Limit serverLimit = servers.compute(server, (address, limit) -> {
+            if (limit == null) limit = new Limit();
+            limit.lastUsed = System.currentTimeMillis();
+            return limit;
+        });
+        return serverLimit.acquire(server.getHostAddress())
+                .thenCompose(ignored -> global.acquire("any server")
+                        .whenComplete((granted, ex) -> {
+                            if (ex != null) serverLimit.release(0);
+                        }))
+                .thenApply(ignored -> new Permit(serverLimit));
+    }
+
+    /** Changes the limits. The new global limit applies immediately; the adaptive limit of each
+     * server is capped by the new maximum as it next adapts.
+     *
+     * @param globalLimit    Maximum number of queries outstanding to all servers.
+     * @param maxServerLimit Maximum number of queries outstanding to any one server.
+     */
+    public void setLimits(int globalLimit, int maxServerLimit) {
+        synchronized (global) {
+            global.limit = globalLimit;
+        }
+        global.admitWaiting();
+        this.maxServerLimit = maxServerLimit;
+    }
+
+    /** Forgets the limits of servers that are idle.
+     */
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (InetAddress server : servers.keySet()) {
+            servers.computeIfPresent(server, (address, limit) -> limit.isIdle(now) ? null : limit);
+        }
+    }
+
+    /** Perform a specific action for the global limit and for each server that was queried recently. The
+     * action receives a name ("global" or the server address) and a line describing the current
+     * limit, queries outstanding, queries waiting and queries rejected.
+     *
+     * @param consumer Action to be performed for each limit.
+     */
+    public void forEachLimit(BiConsumer<String, String> consumer) {
+        consumer.accept("global", global.describe());
+        Map<String, Limit> sorted = new TreeMap<>();
+        servers.forEach((address, limit) -> sorted.put(address.getHostAddress(), limit));
+        sorted.forEach((address, limit) -> consumer.accept(address, limit.describe()));
+    }
+}